@@ -0,0 +1,175 @@
+package org.jenkinci.plugins.mock_slave;
+
+import hudson.remoting.Launcher;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Agent-side entry point for transports not supported by {@code agent.jar} itself.
+ * <p>Runs in the agent JVM with only Remoting on the classpath,
+ * so it must not refer to anything else from Jenkins or this plugin.
+ * {@link #install} copies it into a directory which can be put on the agent classpath.
+ */
+public final class AgentBootstrap {
+
+    /** All classes needed by {@link #main}. */
+    private static final Class<?>[] CLASSES = {AgentBootstrap.class, SocketInputStream.class, SocketOutputStream.class};
+
+    private AgentBootstrap() {}
+
+    /**
+     * {@code unix <path>}: listens on a Unix domain socket and runs a Remoting channel over the first connection.
+     * <p>{@code host <path>}: listens on a Unix domain socket and runs a Remoting channel over every connection,
+     * each in its own thread, until standard input is closed.
+     */
+    public static void main(String... args) throws Exception {
+        if (args.length != 2 || !(args[0].equals("unix") || args[0].equals("host"))) {
+            System.err.println("Usage: AgentBootstrap unix|host <socket>");
+            System.exit(2);
+        }
+        Path socket = Path.of(args[1]);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            if (args[0].equals("host")) {
+                host(server);
+            }
+            SocketChannel ch = server.accept();
+            Files.deleteIfExists(socket); // nobody else should connect
+            Launcher.main(new SocketInputStream(ch), new SocketOutputStream(ch));
+        }
+        System.exit(0);
+    }
+
+    /** Never returns. */
+    private static void host(ServerSocketChannel server) throws IOException {
+        Thread watchdog = new Thread(() -> {
+            // the controller holds our standard input open for as long as it wants us
+            try {
+                while (System.in.read() != -1) {
+                    // ignore
+                }
+            } catch (IOException x) {
+                x.printStackTrace();
+            }
+            System.exit(0);
+        }, "stdin watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+        for (int n = 1; ; n++) {
+            SocketChannel ch = server.accept();
+            int id = n;
+            new Thread(() -> {
+                try {
+                    Launcher.main(new SocketInputStream(ch), new SocketOutputStream(ch));
+                } catch (Throwable x) {
+                    x.printStackTrace();
+                } finally {
+                    try {
+                        ch.close();
+                    } catch (IOException x) {
+                        x.printStackTrace();
+                    }
+                }
+            }, "agent channel #" + id).start();
+        }
+    }
+
+    /** Whether {@link #install} has populated a directory which still exists. */
+    static boolean isInstalled(File dir) {
+        for (Class<?> c : CLASSES) {
+            if (!new File(dir, c.getName().replace('.', '/') + ".class").isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the bootstrap classes into a directory.
+     * @return a classpath entry from which {@link AgentBootstrap} may be loaded
+     */
+    static synchronized File install(File dir) throws IOException {
+        for (Class<?> c : CLASSES) {
+            String resource = c.getName().replace('.', '/') + ".class";
+            File f = new File(dir, resource);
+            Files.createDirectories(f.getParentFile().toPath());
+            try (InputStream is = c.getClassLoader().getResourceAsStream(resource)) {
+                if (is == null) {
+                    throw new IOException("could not find " + resource);
+                }
+                Files.copy(is, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * Reads from a blocking socket channel.
+     * Unlike {@link java.nio.channels.Channels#newInputStream}, does not lock out concurrent writes.
+     */
+    static final class SocketInputStream extends InputStream {
+
+        private final SocketChannel ch;
+
+        SocketInputStream(SocketChannel ch) {
+            this.ch = ch;
+        }
+
+        @Override public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return ch.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override public void close() throws IOException {
+            ch.close();
+        }
+
+    }
+
+    /**
+     * Writes to a blocking socket channel.
+     */
+    static final class SocketOutputStream extends OutputStream {
+
+        private final SocketChannel ch;
+
+        SocketOutputStream(SocketChannel ch) {
+            this.ch = ch;
+        }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+        }
+
+        @Override public void close() throws IOException {
+            ch.close();
+        }
+
+    }
+
+}
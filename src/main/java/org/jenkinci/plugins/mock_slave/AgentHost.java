@@ -0,0 +1,198 @@
+package org.jenkinci.plugins.mock_slave;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * A JVM running {@link AgentBootstrap} in {@code host} mode, serving the channels of several mock agents at once.
+ * Agents share classes and JIT state with one another but remain in a separate process from the controller.
+ * A host is started when no existing one has room, and killed once its last agent disconnects.
+ */
+final class AgentHost {
+
+    private static final Logger LOGGER = Logger.getLogger(AgentHost.class.getName());
+
+    /** Maximum number of agents to attach to one host at a time. */
+    @SuppressWarnings("FieldMayBeFinal")
+    static /* not final */ int CAPACITY = SystemProperties.getInteger(AgentHost.class.getName() + ".CAPACITY", 20);
+
+    private static final List<AgentHost> hosts = new ArrayList<>();
+    private static int counter;
+
+    private final String name;
+    /** completed once the process is listening on {@link #socket}, after which the fields below are set */
+    private final CompletableFuture<Process> started = new CompletableFuture<>();
+    private Process proc;
+    private Path dir;
+    private Path socket;
+    /** guarded by {@code AgentHost.class} */
+    private int attached;
+
+    private AgentHost(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Connects a new agent channel to a host, starting one if necessary.
+     * The host JVM is started outside any lock, so other agents may attach to or detach from existing hosts meanwhile;
+     * agents arriving while it starts wait for it rather than starting hosts of their own.
+     * @param classpath classpath containing Remoting and {@link AgentBootstrap}
+     * @param log launch log of the agent
+     */
+    static Lease attach(String classpath, PrintStream log) throws IOException, InterruptedException {
+        AgentHost host = null;
+        boolean starting = false;
+        synchronized (AgentHost.class) {
+            for (AgentHost h : hosts) {
+                if (h.attached < CAPACITY && h.usable()) {
+                    host = h;
+                    break;
+                }
+            }
+            if (host == null) {
+                host = new AgentHost("agent host #" + ++counter);
+                hosts.add(host);
+                starting = true;
+            }
+            host.attached++;
+        }
+        try {
+            if (starting) {
+                host.start(classpath, log);
+            }
+            host.awaitStarted();
+            log.println("attaching to " + host.name + " at " + host.socket);
+            return new Lease(host, SocketChannel.open(UnixDomainSocketAddress.of(host.socket)));
+        } catch (IOException | InterruptedException | RuntimeException x) {
+            host.detach();
+            throw x;
+        }
+    }
+
+    /** Whether the host is starting or running. */
+    private boolean usable() {
+        if (!started.isDone()) {
+            return true;
+        }
+        return !started.isCompletedExceptionally() && started.join().isAlive();
+    }
+
+    private void start(String classpath, PrintStream log) throws IOException, InterruptedException {
+        Process p = null;
+        try {
+            // keep the path short: sun_path is limited to around 100 bytes
+            dir = Files.createTempDirectory("mock-agent-host");
+            socket = dir.resolve("host.sock");
+            File errors = dir.resolve("host.log").toFile();
+            log.println("starting " + name + ", logging to " + errors);
+            p = new ProcessBuilder("java", "-cp", classpath, AgentBootstrap.class.getName(), "host", socket.toString()).
+                redirectOutput(ProcessBuilder.Redirect.DISCARD).
+                start();
+            // the host outlives any one agent, so its stderr is kept within the same limits as a launch log
+            OutputStream errorLog = new FileOutputStream(errors);
+            InputStream stderr = p.getErrorStream();
+            Thread copier = new Thread(() -> {
+                try (errorLog) {
+                    new LaunchLogPipe(name, stderr, errorLog).run();
+                } catch (IOException x) {
+                    LOGGER.log(Level.FINE, "could not close " + errors, x);
+                }
+            }, "stderr copier for " + name);
+            copier.setDaemon(true);
+            copier.start();
+            // standard input stays open until we are done with it
+            while (!Files.exists(socket)) {
+                if (!p.isAlive()) {
+                    copier.join(TimeUnit.SECONDS.toMillis(5));
+                    String output = FileUtils.readFileToString(errors, Charset.defaultCharset());
+                    throw new IOException(name + " exited with status " + p.exitValue() + " before listening on " + socket + ":\n" + output);
+                }
+                Thread.sleep(100);
+            }
+        } catch (IOException | InterruptedException | RuntimeException x) {
+            if (p != null) {
+                p.destroyForcibly();
+            }
+            if (dir != null) {
+                FileUtils.deleteQuietly(dir.toFile());
+            }
+            started.completeExceptionally(x);
+            throw x;
+        }
+        proc = p;
+        LOGGER.info(() -> "started " + name + " as process " + proc.pid());
+        started.complete(p);
+    }
+
+    private void awaitStarted() throws IOException, InterruptedException {
+        try {
+            started.get();
+        } catch (ExecutionException x) {
+            throw new IOException(name + " failed to start", x.getCause());
+        }
+    }
+
+    private void detach() {
+        synchronized (AgentHost.class) {
+            if (--attached > 0) {
+                return;
+            }
+            hosts.remove(this);
+        }
+        if (started.isCompletedExceptionally()) {
+            return; // already cleaned up
+        }
+        LOGGER.fine(() -> "stopping " + name + " with no more agents");
+        ProcessReaper.reap(proc, name).thenRun(() -> {
+            try {
+                FileUtils.deleteDirectory(dir.toFile());
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "could not delete " + dir, x);
+            }
+        });
+    }
+
+    /**
+     * One agent channel attached to a host.
+     * Closing it kills the host if no other agents are attached,
+     * but never touches processes belonging to other agents.
+     */
+    static final class Lease implements AutoCloseable {
+
+        private final AgentHost host;
+        final SocketChannel channel;
+        private boolean closed;
+
+        private Lease(AgentHost host, SocketChannel channel) {
+            this.host = host;
+            this.channel = channel;
+        }
+
+        @Override public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                host.detach();
+            }
+        }
+
+    }
+
+}
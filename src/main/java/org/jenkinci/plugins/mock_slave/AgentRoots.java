@@ -0,0 +1,200 @@
+package org.jenkinci.plugins.mock_slave;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Manages the root directories of mock agents.
+ * Roots of terminated agents are deleted in the background, one at a time and at a bounded rate,
+ * so that long load tests neither accumulate files nor compete with builds for disk.
+ */
+final class AgentRoots {
+
+    private static final Logger LOGGER = Logger.getLogger(AgentRoots.class.getName());
+
+    /** Directory in which to keep agent roots instead of {@code JENKINS_HOME}, such as a tmpfs; they go in a {@code mock-agents} subdirectory. */
+    @SuppressWarnings("FieldMayBeFinal")
+    static /* not final */ String ROOT = SystemProperties.getString(AgentRoots.class.getName() + ".ROOT");
+
+    /** Maximum number of files to delete per second; zero or negative for no limit. */
+    @SuppressWarnings("FieldMayBeFinal")
+    static /* not final */ int FILES_PER_SECOND = SystemProperties.getInteger(AgentRoots.class.getName() + ".FILES_PER_SECOND", 1000);
+
+    /**
+     * Seconds to wait after termination before deleting a root, so that the agent processes have exited.
+     * {@link ProcessReaper} may wait up to {@link ProcessReaper#TIMEOUT} once before killing them forcibly and once more after.
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static /* not final */ int GRACE = SystemProperties.getInteger(AgentRoots.class.getName() + ".GRACE", 2 * ProcessReaper.TIMEOUT + 5);
+
+    /** Minutes after which the root of an agent no longer in Jenkins is deleted even if it was not terminated normally. */
+    @SuppressWarnings("FieldMayBeFinal")
+    static /* not final */ long EVICT_AFTER = SystemProperties.getLong(AgentRoots.class.getName() + ".EVICT_AFTER", 60L);
+
+    /** Single thread, so deletions never run concurrently with one another. */
+    private static final ScheduledExecutorService deleter = Executors.newSingleThreadScheduledExecutor(new NamingThreadFactory(new DaemonThreadFactory(), "AgentRoots.deleter"));
+
+    /** Names with a deletion scheduled but not yet finished. */
+    private static final Set<String> pending = new HashSet<>();
+
+    private AgentRoots() {}
+
+    /** Names given to agents by {@link MockCloud}, the only roots ever deleted. */
+    private static final Pattern CLOUD_AGENT = Pattern.compile("mock-agent-[0-9]+");
+
+    /** Directory holding the roots of all mock agents. */
+    static File dir() {
+        return new File(ROOT != null ? new File(ROOT) : Jenkins.get().getRootDir(), "mock-agents");
+    }
+
+    /** Schedules deletion of the root of an agent which has been terminated. */
+    static void delete(String name) {
+        delete(name, GRACE, TimeUnit.SECONDS);
+    }
+
+    private static void delete(String name, long delay, TimeUnit unit) {
+        synchronized (pending) {
+            if (!pending.add(name)) {
+                return;
+            }
+        }
+        deleter.schedule(() -> {
+            try {
+                deleteNow(name);
+            } finally {
+                synchronized (pending) {
+                    pending.remove(name);
+                }
+            }
+        }, delay, unit);
+    }
+
+    private static void deleteNow(String name) {
+        if (Jenkins.get().getNode(name) != null) {
+            LOGGER.fine(() -> "not deleting root of " + name + " which is in use again");
+            return;
+        }
+        Path root = new File(dir(), name).toPath();
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        long start = System.nanoTime();
+        RateLimitedDeleter visitor = new RateLimitedDeleter(start);
+        try {
+            Files.walkFileTree(root, visitor);
+            LOGGER.fine(() -> "deleted " + visitor.files + " files from " + root + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        } catch (IOException x) {
+            // for example, a process which survived the grace period; eviction will try again
+            LOGGER.log(Level.FINE, "failed to delete " + root, x);
+        }
+    }
+
+    private static final class RateLimitedDeleter extends SimpleFileVisitor<Path> {
+
+        private final long start;
+        long files;
+
+        RateLimitedDeleter(long start) {
+            this.start = start;
+        }
+
+        @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            Files.delete(file);
+            files++;
+            int rate = FILES_PER_SECOND;
+            if (rate > 0) {
+                long due = start + files * TimeUnit.SECONDS.toNanos(1) / rate;
+                long ahead = due - System.nanoTime();
+                if (ahead > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(ahead);
+                    } catch (InterruptedException x) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+            if (exc != null) {
+                throw exc;
+            }
+            Files.delete(dir);
+            return FileVisitResult.CONTINUE;
+        }
+
+    }
+
+    /**
+     * Schedules deletion of roots of cloud agents which are no longer defined and have not been touched for a while.
+     * Other directories, such as roots of {@link MockSlave}s, are left alone.
+     * @return the number of roots scheduled for deletion
+     */
+    static int evict(long maxAgeMillis) {
+        File[] dirs = dir().listFiles(File::isDirectory);
+        if (dirs == null) {
+            return 0;
+        }
+        Set<String> live = new HashSet<>();
+        for (Node n : Jenkins.get().getNodes()) {
+            live.add(n.getNodeName());
+        }
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int evicted = 0;
+        for (File dir : dirs) {
+            if (!CLOUD_AGENT.matcher(dir.getName()).matches() || live.contains(dir.getName()) || dir.lastModified() > cutoff) {
+                continue;
+            }
+            delete(dir.getName(), 0, TimeUnit.SECONDS);
+            evicted++;
+        }
+        return evicted;
+    }
+
+    @Extension public static final class Eviction extends AsyncPeriodicWork {
+
+        public Eviction() {
+            super("Mock agent root eviction");
+        }
+
+        @Override public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(Math.max(1, EVICT_AFTER));
+        }
+
+        @Override protected void execute(TaskListener listener) {
+            if (EVICT_AFTER <= 0) {
+                return;
+            }
+            int evicted = evict(TimeUnit.MINUTES.toMillis(EVICT_AFTER));
+            if (evicted > 0) {
+                listener.getLogger().println("Scheduled deletion of " + evicted + " stale mock agent roots");
+            }
+        }
+
+    }
+
+}
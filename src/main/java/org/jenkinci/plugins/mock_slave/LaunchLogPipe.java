@@ -0,0 +1,144 @@
+package org.jenkinci.plugins.mock_slave;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Copies output of an agent process into its launch log, within limits.
+ * Unlike {@link hudson.util.StreamCopyThread}, writes in batches rather than as each read returns,
+ * and discards output beyond a rate limit or a total size, so that a noisy agent cannot flood {@code JENKINS_HOME}.
+ * The process is always drained, so it never blocks on a full pipe.
+ * Each launch starts a new log file, which Jenkins rotates, so the size cap also bounds each rotated file.
+ * Discarded output is counted in {@link MockAgentEvents.LaunchLogDropped}.
+ */
+final class LaunchLogPipe implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(LaunchLogPipe.class.getName());
+
+    /** Maximum number of bytes to copy per launch; zero or negative for no limit. */
+    @SuppressWarnings("FieldMayBeFinal")
+    static /* not final */ long MAX_BYTES = SystemProperties.getLong(LaunchLogPipe.class.getName() + ".MAX_BYTES", 10L * 1024 * 1024);
+
+    /** Maximum number of bytes per second to copy, averaged over a second; zero or negative for no limit. */
+    @SuppressWarnings("FieldMayBeFinal")
+    static /* not final */ int BYTES_PER_SECOND = SystemProperties.getInteger(LaunchLogPipe.class.getName() + ".BYTES_PER_SECOND", 64 * 1024);
+
+    /** Size at which a batch is written even if more output is immediately available. */
+    private static final int BATCH = 64 * 1024;
+
+    private static final AtomicLong totalDropped = new AtomicLong();
+
+    private final String name;
+    private final InputStream in;
+    private final OutputStream log;
+    private final long maxBytes;
+    private final int bytesPerSecond;
+    private long copied;
+    private long dropped;
+    private double tokens;
+    private long refilled = System.nanoTime();
+    private boolean dropping;
+
+    LaunchLogPipe(String name, InputStream in, OutputStream log) {
+        this(name, in, log, MAX_BYTES, BYTES_PER_SECOND);
+    }
+
+    LaunchLogPipe(String name, InputStream in, OutputStream log, long maxBytes, int bytesPerSecond) {
+        this.name = name;
+        this.in = in;
+        this.log = log;
+        this.maxBytes = maxBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        tokens = bytesPerSecond;
+    }
+
+    /** Copies in a new daemon thread. */
+    static void start(String name, InputStream in, OutputStream log) {
+        Thread t = new Thread(new LaunchLogPipe(name, in, log), name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Total bytes of agent output discarded by all pipes since startup. */
+    static long totalDropped() {
+        return totalDropped.get();
+    }
+
+    /** Bytes of output discarded by this pipe so far. */
+    long dropped() {
+        return dropped;
+    }
+
+    @Override public void run() {
+        byte[] buf = new byte[8192];
+        byte[] batch = new byte[BATCH];
+        int batched = 0;
+        try (in) {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                int allowed = allow(n);
+                if (allowed < n) {
+                    dropped += n - allowed;
+                    totalDropped.addAndGet(n - allowed);
+                }
+                if (batched + allowed > batch.length) {
+                    log.write(batch, 0, batched);
+                    batched = 0;
+                }
+                System.arraycopy(buf, 0, batch, batched, allowed);
+                batched += allowed;
+                if (allowed < n && !dropping) {
+                    dropping = true;
+                    log.write(batch, 0, batched);
+                    batched = 0;
+                    notice(maxBytes > 0 && copied >= maxBytes ? "output exceeded " + maxBytes + " bytes; discarding the rest" : "output exceeded " + bytesPerSecond + " bytes/s; discarding some");
+                } else if (allowed == n && dropping && (maxBytes <= 0 || copied < maxBytes)) {
+                    dropping = false;
+                }
+                if (batched > 0 && (batched >= BATCH / 2 || in.available() == 0)) {
+                    log.write(batch, 0, batched);
+                    log.flush();
+                    batched = 0;
+                }
+            }
+            log.write(batch, 0, batched);
+            if (dropped > 0) {
+                notice(dropped + " bytes of output discarded in total");
+                LOGGER.info(() -> name + " discarded " + dropped + " bytes of agent output; " + totalDropped.get() + " bytes by all agents since startup");
+            }
+            log.flush();
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, name + " stopped", x);
+        }
+    }
+
+    /** @return how many of the next {@code n} bytes may be copied */
+    private int allow(int n) {
+        long allowed = n;
+        if (maxBytes > 0) {
+            allowed = Math.min(allowed, Math.max(0, maxBytes - copied));
+        }
+        if (bytesPerSecond > 0) {
+            long now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond, tokens + (now - refilled) * (double) bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+            refilled = now;
+            allowed = Math.min(allowed, (long) tokens);
+            tokens -= allowed;
+        }
+        copied += allowed;
+        return (int) allowed;
+    }
+
+    private void notice(String message) throws IOException {
+        log.write(("\n[" + message + "]\n").getBytes(StandardCharsets.UTF_8));
+        log.flush();
+    }
+
+}
@@ -0,0 +1,94 @@
+package org.jenkinci.plugins.mock_slave;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Limits how many {@link MockSlaveLauncher}s may start agent processes at once, and how often,
+ * so that the reconnect storm after a controller restart can be shaped and measured.
+ * Both limits are read on every acquisition and so may be changed at runtime (for example from the script console).
+ */
+final class LaunchRamp {
+
+    private static final Logger LOGGER = Logger.getLogger(LaunchRamp.class.getName());
+
+    /** Maximum number of launches in progress at once; zero or negative for no limit. */
+    @SuppressWarnings("FieldMayBeFinal")
+    static /* not final */ int CONCURRENCY = SystemProperties.getInteger(LaunchRamp.class.getName() + ".CONCURRENCY", 0);
+
+    /** Maximum number of launches to begin per second; zero or negative for no limit. */
+    @SuppressWarnings("FieldMayBeFinal")
+    static /* not final */ double RATE = Double.parseDouble(SystemProperties.getString(LaunchRamp.class.getName() + ".RATE", "0"));
+
+    private static final Object lock = new Object();
+    private static int active;
+    /** {@link System#nanoTime} before which the next launch may not begin, if {@link #RATE} is set. */
+    private static long nextStart = System.nanoTime();
+
+    private LaunchRamp() {}
+
+    /**
+     * Waits until a launch may begin.
+     * @return a permit to close once the launch is over
+     */
+    static Permit acquire(String agent) throws InterruptedException {
+        long start = System.nanoTime();
+        long slot = start;
+        synchronized (lock) {
+            double rate = RATE;
+            if (rate > 0) {
+                slot = Math.max(slot, nextStart);
+                nextStart = slot + (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            }
+        }
+        long delay = slot - System.nanoTime();
+        if (delay > 0) {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        }
+        // only now take a concurrency slot, so that launches waiting on the rate do not hold one
+        synchronized (lock) {
+            while (CONCURRENCY > 0 && active >= CONCURRENCY) {
+                lock.wait();
+            }
+            active++;
+        }
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOGGER.fine(() -> "launch of " + agent + " waited " + waited + "ms for a slot");
+        return new Permit(waited);
+    }
+
+    private static void release() {
+        synchronized (lock) {
+            active--;
+            lock.notifyAll();
+        }
+    }
+
+    /** Number of launches currently holding a permit. */
+    static int active() {
+        synchronized (lock) {
+            return active;
+        }
+    }
+
+    static final class Permit implements AutoCloseable {
+
+        /** Milliseconds spent in {@link #acquire}. */
+        final long waited;
+        private boolean closed;
+
+        private Permit(long waited) {
+            this.waited = waited;
+        }
+
+        @Override public void close() {
+            if (!closed) {
+                closed = true;
+                release();
+            }
+        }
+
+    }
+
+}
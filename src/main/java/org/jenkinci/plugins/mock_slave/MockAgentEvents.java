@@ -0,0 +1,126 @@
+package org.jenkinci.plugins.mock_slave;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events describing mock agent activity,
+ * so that a recording of a load test shows where provisioning and channel time goes.
+ */
+final class MockAgentEvents {
+
+    private static final String PREFIX = "org.jenkinci.plugins.mock_slave.";
+
+    private MockAgentEvents() {}
+
+    @Name(PREFIX + "Provision")
+    @Label("Mock Cloud Provision")
+    @Category({"Jenkins", "Mock Agent"})
+    @StackTrace(false)
+    static final class Provision extends Event {
+        @Label("Cloud") String cloud;
+        @Label("Label") String label;
+        @Label("Excess Workload") int excessWorkload;
+        @Label("Planned Agents") int plannedAgents;
+        @Label("Planned Executors") int plannedExecutors;
+    }
+
+    @Name(PREFIX + "Strategy")
+    @Label("Mock Cloud Provisioning Strategy")
+    @Category({"Jenkins", "Mock Agent"})
+    @StackTrace(false)
+    static final class Strategy extends Event {
+        @Label("Label") String label;
+        @Label("Demand") int demand;
+        @Label("Capacity Before") int capacityBefore;
+        @Label("Capacity After") int capacityAfter;
+        @Label("Decision") String decision;
+    }
+
+    @Name(PREFIX + "LaunchPhase")
+    @Label("Mock Agent Launch Phase")
+    @Description("One step of launching an agent; the duration is that of the step.")
+    @Category({"Jenkins", "Mock Agent"})
+    @StackTrace(false)
+    static final class LaunchPhase extends Event {
+        @Label("Agent") String agent;
+        @Label("Phase") String phase;
+    }
+
+    @Name(PREFIX + "Termination")
+    @Label("Mock Agent Termination")
+    @Description("Killing the processes of an agent; the duration is the time until they exited.")
+    @Category({"Jenkins", "Mock Agent"})
+    @StackTrace(false)
+    static final class Termination extends Event {
+        @Label("Agent") String agent;
+        @Label("Processes") int processes;
+        @Label("Forced") boolean forced;
+    }
+
+    @Name(PREFIX + "Throttler")
+    @Label("Mock Agent Throttler")
+    @Category({"Jenkins", "Mock Agent"})
+    @Period("1 s")
+    @StackTrace(false)
+    static final class ThrottlerSample extends Event {
+        @Label("Agent") String agent;
+        @Label("Queued Upstream") @DataAmount int queuedUpstream;
+        @Label("Queued Downstream") @DataAmount int queuedDownstream;
+        @Label("Upstream Lateness") @Timespan(Timespan.NANOSECONDS) long upstreamLateness;
+        @Label("Downstream Lateness") @Timespan(Timespan.NANOSECONDS) long downstreamLateness;
+    }
+
+    @Name(PREFIX + "LaunchLogDropped")
+    @Label("Mock Agent Output Dropped")
+    @Description("Agent output discarded by the limits on launch logs since startup.")
+    @Category({"Jenkins", "Mock Agent"})
+    @Period("10 s")
+    @StackTrace(false)
+    static final class LaunchLogDropped extends Event {
+        @Label("Total Dropped") @DataAmount long totalDropped;
+    }
+
+    private static final Map<Throttler, String> throttlers = new ConcurrentHashMap<>();
+
+    static {
+        FlightRecorder.addPeriodicEvent(ThrottlerSample.class, MockAgentEvents::sampleThrottlers);
+        FlightRecorder.addPeriodicEvent(LaunchLogDropped.class, () -> {
+            LaunchLogDropped e = new LaunchLogDropped();
+            e.totalDropped = LaunchLogPipe.totalDropped();
+            e.commit();
+        });
+    }
+
+    /** Includes a throttler in periodic {@link ThrottlerSample}s until {@link #unwatch} is called. */
+    static void watch(Throttler throttler, String agent) {
+        throttlers.put(throttler, agent);
+    }
+
+    static void unwatch(Throttler throttler) {
+        throttlers.remove(throttler);
+    }
+
+    private static void sampleThrottlers() {
+        throttlers.forEach((throttler, agent) -> {
+            ThrottlerSample e = new ThrottlerSample();
+            e.agent = agent;
+            e.queuedUpstream = throttler.queuedUpstream();
+            e.queuedDownstream = throttler.queuedDownstream();
+            e.upstreamLateness = throttler.upstreamLateness();
+            e.downstreamLateness = throttler.downstreamLateness();
+            e.commit();
+        });
+    }
+
+}
@@ -24,9 +24,11 @@
 
 package org.jenkinci.plugins.mock_slave;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.Extension;
 import hudson.Functions;
 import hudson.Util;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Label;
@@ -35,31 +37,44 @@ import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.Slave;
 import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
 import hudson.model.queue.QueueListener;
 import hudson.slaves.AbstractCloudComputer;
 import hudson.slaves.AbstractCloudSlave;
 import hudson.slaves.Cloud;
 import hudson.slaves.CloudProvisioningListener;
 import hudson.slaves.CloudRetentionStrategy;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.EphemeralNode;
 import hudson.slaves.JNLPLauncher;
 import hudson.slaves.NodeProvisioner;
 import hudson.slaves.SlaveComputer;
 import hudson.util.FormValidation;
-import hudson.util.StreamCopyThread;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
 import jenkins.model.JenkinsLocationConfiguration;
 import jenkins.util.Listeners;
+import jenkins.util.SystemProperties;
 import jenkins.util.Timer;
 import org.apache.commons.io.FileUtils;
 import org.jenkinsci.Symbol;
@@ -79,22 +94,59 @@ public final class MockCloud extends Cloud {
 
     @DataBoundSetter public Node.Mode mode = Node.Mode.NORMAL;
     private int numExecutors = 1; // field had a poor name
+    /** if positive and less than {@link #numExecutors}, agents are sized between the two to fit the excess workload */
+    private int minExecutors;
     private String labelString = ""; // field had a poor name
+    private transient volatile Set<LabelAtom> labelAtoms;
     private Boolean oneShot = true; // reading null for compatibility
     private boolean inbound;
+    /** if set, outbound agents share {@link AgentHost} processes */
+    private boolean hosted;
+    private boolean ephemeral;
     // TODO could also support WebSocket
     private int maximum;
+    /** if set, directory (absolute or relative to {@code JENKINS_HOME}) whose contents are seeded into each new agent root */
+    private String cacheTemplate;
+    /** if set, {@link #cacheTemplate} is hard-linked rather than copied */
+    private boolean cacheHardLinks;
 
     @DataBoundConstructor public MockCloud(String name) {
         super(name);
     }
 
+    public int getMinExecutors() {
+        return minExecutors;
+    }
+
+    @DataBoundSetter public void setMinExecutors(int minExecutors) {
+        this.minExecutors = minExecutors;
+    }
+
+    /** Number of executors to give the next agent. */
+    private int executorsFor(int excessWorkload) {
+        if (minExecutors > 0 && minExecutors < numExecutors) {
+            return Math.max(minExecutors, Math.min(numExecutors, excessWorkload));
+        } else {
+            return numExecutors;
+        }
+    }
+
     public String getLabels() {
         return labelString;
     }
 
     @DataBoundSetter public void setLabels(String labels) {
         labelString = Util.fixNull(labels);
+        labelAtoms = null;
+    }
+
+    private Set<LabelAtom> getLabelAtoms() {
+        Set<LabelAtom> atoms = labelAtoms;
+        if (atoms == null) {
+            atoms = Label.parse(labelString);
+            labelAtoms = atoms;
+        }
+        return atoms;
     }
 
     public boolean getOneShot() {
@@ -121,6 +173,33 @@ public final class MockCloud extends Cloud {
         this.inbound = inbound;
     }
 
+    public boolean isHosted() {
+        return hosted;
+    }
+
+    @DataBoundSetter public void setHosted(boolean hosted) {
+        this.hosted = hosted;
+    }
+
+    private ComputerLauncher newLauncher() {
+        if (inbound) {
+            return new MockInboundLauncher();
+        }
+        MockSlaveLauncher launcher = new MockSlaveLauncher(0, 0);
+        if (hosted) {
+            launcher.setTransport(MockSlaveLauncher.Transport.HOSTED);
+        }
+        return launcher;
+    }
+
+    public boolean isEphemeral() {
+        return ephemeral;
+    }
+
+    @DataBoundSetter public void setEphemeral(boolean ephemeral) {
+        this.ephemeral = ephemeral;
+    }
+
     public int getMaximum() {
         return maximum;
     }
@@ -129,6 +208,36 @@ public final class MockCloud extends Cloud {
         this.maximum = maximum;
     }
 
+    public String getCacheTemplate() {
+        return cacheTemplate;
+    }
+
+    @DataBoundSetter public void setCacheTemplate(String cacheTemplate) {
+        this.cacheTemplate = Util.fixEmptyAndTrim(cacheTemplate);
+    }
+
+    public boolean isCacheHardLinks() {
+        return cacheHardLinks;
+    }
+
+    @DataBoundSetter public void setCacheHardLinks(boolean cacheHardLinks) {
+        this.cacheHardLinks = cacheHardLinks;
+    }
+
+    private @CheckForNull Path cacheTemplate() {
+        return cacheTemplate != null ? Jenkins.get().getRootDir().toPath().resolve(cacheTemplate) : null;
+    }
+
+    /** Number of agents from this cloud currently in Jenkins. */
+    long countAgents() {
+        return Jenkins.get().getNodes().stream().filter(n -> n instanceof MockCloudSlave mcs && name.equals(mcs.cloudName)).count();
+    }
+
+    /** Number of agents this cloud may still provision. */
+    long headroom() {
+        return maximum > 0 ? Math.max(0, maximum - countAgents()) : Long.MAX_VALUE;
+    }
+
     private Object readResolve() {
         if (oneShot == null) {
             oneShot = numExecutors == 1;
@@ -139,7 +248,7 @@ public final class MockCloud extends Cloud {
     @Override public boolean canProvision(Cloud.CloudState state) {
         Label label = state.getLabel();
         LOGGER.fine(() -> "checking whether " + name + " can provision " + label);
-        return label == null ? mode == Node.Mode.NORMAL : label.matches(Label.parse(labelString));
+        return label == null ? mode == Node.Mode.NORMAL : label.matches(getLabelAtoms());
         // Not taking maximum into account, since this method is normally interpreted as corresponding to static configuration.
         // but see https://github.com/jenkinsci/jenkins/issues/20434
     }
@@ -147,10 +256,12 @@ public final class MockCloud extends Cloud {
     @Override public Collection<NodeProvisioner.PlannedNode> provision(CloudState state, int excessWorkload) {
         int originalExcessWorkload = excessWorkload;
         LOGGER.fine(() -> "name=" + name + " label=" + state.getLabel() + " additionalPlannedCapacity=" + state.getAdditionalPlannedCapacity() + " excessWorkload=" + originalExcessWorkload);
+        MockAgentEvents.Provision event = new MockAgentEvents.Provision();
+        event.begin();
         Collection<NodeProvisioner.PlannedNode> r = new ArrayList<>();
         while (excessWorkload > 0) {
             if (maximum > 0) {
-                long curr = Jenkins.get().getNodes().stream().filter(n -> n instanceof MockCloudSlave mcs && name.equals(mcs.cloudName)).count();
+                long curr = countAgents() + r.size();
                 if (curr >= maximum) {
                     int more = excessWorkload;
                     LOGGER.fine(() -> name + " already running " + curr + " agents ≥" + maximum + "; will not provision " + more + " more");
@@ -158,22 +269,52 @@ public final class MockCloud extends Cloud {
                 }
             }
             long cnt = ((DescriptorImpl) getDescriptor()).newNodeNumber();
+            int executors = executorsFor(excessWorkload);
             CompletableFuture<Node> future;
             try {
-                MockCloudSlave agent = new MockCloudSlave(name, "mock-agent-" + cnt, inbound);
+                MockCloudSlave agent = ephemeral ? new EphemeralMockCloudSlave(name, "mock-agent-" + cnt, newLauncher()) : new MockCloudSlave(name, "mock-agent-" + cnt, newLauncher());
                 agent.setNodeDescription("Mock agent #" + cnt);
                 agent.setMode(mode);
-                agent.setNumExecutors(numExecutors);
+                agent.setNumExecutors(executors);
                 agent.setLabelString(labelString);
-                agent.setRetentionStrategy(oneShot ? new OnceRetentionStrategy(5) : new CloudRetentionStrategy(1));
-                future = CompletableFuture.completedFuture(agent);
+                if (!oneShot) {
+                    agent.setRetentionStrategy(new CloudRetentionStrategy(1));
+                } else if (ephemeral || executors > 1) {
+                    // OnceRetentionStrategy rejects EphemeralNode, and would terminate after the first task regardless of executors
+                    agent.setRetentionStrategy(new OneShotRetentionStrategy(5, executors));
+                } else {
+                    agent.setRetentionStrategy(new OnceRetentionStrategy(5));
+                }
+                Path template = cacheTemplate();
+                if (template != null) {
+                    boolean hardLinks = cacheHardLinks;
+                    future = CompletableFuture.supplyAsync(() -> {
+                        try {
+                            WorkspaceCache.seed(template, Path.of(agent.getRemoteFS()), hardLinks);
+                        } catch (IOException x) {
+                            throw new UncheckedIOException(x);
+                        } catch (InterruptedException x) {
+                            Thread.currentThread().interrupt();
+                            throw new CompletionException(x);
+                        }
+                        return agent;
+                    }, Computer.threadPoolForRemoting);
+                } else {
+                    future = CompletableFuture.completedFuture(agent);
+                }
             } catch (IOException | Descriptor.FormException x) {
                 future = CompletableFuture.failedFuture(x);
             }
-            r.add(new NodeProvisioner.PlannedNode("Mock Agent #" + cnt, future, numExecutors));
-            excessWorkload -= numExecutors;
+            r.add(new NodeProvisioner.PlannedNode("Mock Agent #" + cnt, future, executors));
+            excessWorkload -= executors;
         }
         LOGGER.fine(() -> name + " planning to provision " + r.size() + " agents");
+        event.cloud = name;
+        event.label = state.getLabel() != null ? state.getLabel().getExpression() : null;
+        event.excessWorkload = originalExcessWorkload;
+        event.plannedAgents = r.size();
+        event.plannedExecutors = r.stream().mapToInt(n -> n.numExecutors).sum();
+        event.commit();
         return r;
     }
 
@@ -201,9 +342,37 @@ public final class MockCloud extends Cloud {
             return "Mock Cloud";
         }
 
+        public FormValidation doCheckMinExecutors(@QueryParameter int executors, @QueryParameter int minExecutors) {
+            if (minExecutors < 0) {
+                return FormValidation.error("Must not be negative.");
+            } else if (minExecutors > executors) {
+                return FormValidation.warning("Larger than the number of executors, so ignored.");
+            } else {
+                return FormValidation.ok();
+            }
+        }
+
+        public FormValidation doCheckCacheTemplate(@QueryParameter String cacheTemplate) {
+            if (Util.fixEmptyAndTrim(cacheTemplate) == null) {
+                return FormValidation.ok();
+            }
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            if (!Jenkins.get().getRootDir().toPath().resolve(cacheTemplate.trim()).toFile().isDirectory()) {
+                return FormValidation.warning("No such directory.");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckHosted(@QueryParameter boolean inbound, @QueryParameter boolean hosted) {
+            if (inbound && hosted) {
+                return FormValidation.warning("Inbound agents always run in their own process.");
+            }
+            return FormValidation.ok();
+        }
+
         public FormValidation doCheckOneShot(@QueryParameter int executors, @QueryParameter boolean oneShot) {
-            if (oneShot && executors != 1) {
-                return FormValidation.error("One-shot mode should only be used when agents have one executor apiece.");
+            if (oneShot && executors > 1) {
+                return FormValidation.ok("Each agent will run at most " + executors + " builds, one per executor, and then be terminated.");
             } else {
                 return FormValidation.ok();
             }
@@ -211,12 +380,12 @@ public final class MockCloud extends Cloud {
 
     }
 
-    private static final class MockCloudSlave extends AbstractCloudSlave {
+    private static class MockCloudSlave extends AbstractCloudSlave {
 
         final String cloudName;
 
-        private MockCloudSlave(String cloudName, String slaveName, boolean inbound) throws FormException, IOException {
-            super(slaveName, MockSlave.root(slaveName), inbound ? new MockInboundLauncher() : new MockSlaveLauncher(0, 0));
+        private MockCloudSlave(String cloudName, String slaveName, ComputerLauncher launcher) throws FormException, IOException {
+            super(slaveName, MockSlave.root(slaveName), launcher);
             this.cloudName = cloudName;
         }
 
@@ -225,7 +394,30 @@ public final class MockCloud extends Cloud {
         }
 
         @Override protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
-            // need do nothing
+            AgentRoots.delete(getNodeName());
+        }
+
+        @Extension public static final class DescriptorImpl extends SlaveDescriptor {
+
+            @Override public boolean isInstantiable() {
+                return false;
+            }
+
+        }
+
+    }
+
+    /**
+     * Kept only in memory, so adding and removing it does not touch {@code JENKINS_HOME/nodes}.
+     */
+    private static final class EphemeralMockCloudSlave extends MockCloudSlave implements EphemeralNode {
+
+        private EphemeralMockCloudSlave(String cloudName, String slaveName, ComputerLauncher launcher) throws FormException, IOException {
+            super(cloudName, slaveName, launcher);
+        }
+
+        @Override public Node asNode() {
+            return this;
         }
 
         @Extension public static final class DescriptorImpl extends SlaveDescriptor {
@@ -250,7 +442,7 @@ public final class MockCloud extends Cloud {
 
         @Override public void launch(SlaveComputer computer, TaskListener listener) {
             LOGGER.fine(() -> "launching agent for " + computer.getName());
-            try {
+            try (LaunchRamp.Permit permit = LaunchRamp.acquire(computer.getName())) {
                 File agentJar = new File(Jenkins.get().getRootDir(), "agent.jar");
                 if (!agentJar.isFile()) {
                     FileUtils.copyURLToFile(new Slave.JnlpJar("agent.jar").getURL(), agentJar);
@@ -262,7 +454,7 @@ public final class MockCloud extends Cloud {
                         "-secret", computer.getJnlpMac()).
                     redirectErrorStream(true).
                     start();
-                new StreamCopyThread("I/O of " + computer.getName(), proc.getInputStream(), listener.getLogger()).start();
+                LaunchLogPipe.start("I/O of " + computer.getName(), proc.getInputStream(), listener.getLogger());
                 Instant max = Instant.now().plus(Duration.ofSeconds(15));
                 while (computer.isOffline() && Instant.now().isBefore(max)) {
                     Thread.sleep(100);
@@ -274,7 +466,9 @@ public final class MockCloud extends Cloud {
 
         @Override public void afterDisconnect(SlaveComputer computer, TaskListener listener) {
             LOGGER.fine(() -> "terminating agent for " + computer.getName());
-            proc.destroy();
+            if (proc != null) {
+                ProcessReaper.reap(proc, computer.getName());
+            }
         }
 
     }
@@ -290,24 +484,80 @@ public final class MockCloud extends Cloud {
     // Adapted from io.jenkins.plugins.kubernetes; TODO introduce to core with some sort of marker on Cloud:
     @Extension(ordinal = 100)
     public static class NoDelayProvisionerStrategy extends NodeProvisioner.Strategy {
+
+        /** How to spread demand when several mock clouds can provision for the same label. */
+        public enum Policy {
+            /** Fill each cloud in configuration order before moving on to the next. */
+            ORDERED,
+            /** Split demand evenly, starting with the cloud running the fewest agents. */
+            LEAST_LOADED,
+            /** Split demand evenly, starting with the cloud furthest from its {@link MockCloud#getMaximum}. */
+            MOST_HEADROOM,
+            /** Split demand evenly, starting with a different cloud each time. */
+            ROUND_ROBIN;
+
+            List<MockCloud> order(List<MockCloud> clouds) {
+                if (clouds.size() < 2) {
+                    return clouds;
+                }
+                switch (this) {
+                case LEAST_LOADED: {
+                    Map<MockCloud, Long> load = new HashMap<>();
+                    clouds.forEach(c -> load.put(c, c.countAgents()));
+                    return clouds.stream().sorted(Comparator.comparing(load::get)).toList();
+                }
+                case MOST_HEADROOM: {
+                    Map<MockCloud, Long> headroom = new HashMap<>();
+                    clouds.forEach(c -> headroom.put(c, c.headroom()));
+                    return clouds.stream().sorted(Comparator.comparing(headroom::get).reversed()).toList();
+                }
+                case ROUND_ROBIN: {
+                    List<MockCloud> rotated = new ArrayList<>(clouds);
+                    Collections.rotate(rotated, -Math.floorMod(next.getAndIncrement(), clouds.size()));
+                    return rotated;
+                }
+                default:
+                    return clouds;
+                }
+            }
+        }
+
+        private static final AtomicInteger next = new AtomicInteger();
+
+        /** May be set with the system property {@code org.jenkinci.plugins.mock_slave.MockCloud$NoDelayProvisionerStrategy.POLICY}. */
+        @SuppressWarnings("FieldMayBeFinal")
+        static /* not final */ Policy POLICY = policy(SystemProperties.getString(NoDelayProvisionerStrategy.class.getName() + ".POLICY"));
+
+        private static Policy policy(String name) {
+            if (name != null) {
+                try {
+                    return Policy.valueOf(name);
+                } catch (IllegalArgumentException x) {
+                    LOGGER.warning(() -> "unknown policy " + name + "; expected one of " + Arrays.toString(Policy.values()));
+                }
+            }
+            return Policy.ORDERED;
+        }
+
         @Override public NodeProvisioner.StrategyDecision apply(NodeProvisioner.StrategyState strategyState) {
             final Label label = strategyState.getLabel();
+            MockAgentEvents.Strategy event = new MockAgentEvents.Strategy();
+            event.begin();
             LoadStatistics.LoadStatisticsSnapshot snapshot = strategyState.getSnapshot();
             int availableCapacity = snapshot.getAvailableExecutors() + snapshot.getConnectingExecutors() + strategyState.getPlannedCapacitySnapshot() + strategyState.getAdditionalPlannedCapacity();
             int previousCapacity = availableCapacity;
             int currentDemand = snapshot.getQueueLength();
             LOGGER.log(Level.FINE, "Available capacity={0}, currentDemand={1}", new Object[] {availableCapacity, currentDemand});
             if (availableCapacity < currentDemand) {
-                List<Cloud> jenkinsClouds = new ArrayList<>(Jenkins.get().clouds);
                 Cloud.CloudState cloudState = new Cloud.CloudState(label, strategyState.getAdditionalPlannedCapacity());
-                for (Cloud cloud : jenkinsClouds) {
-                    int workloadToProvision = currentDemand - availableCapacity;
-                    if (!(cloud instanceof MockCloud)) {
-                        continue;
-                    }
-                    if (!cloud.canProvision(cloudState)) {
-                        continue;
-                    }
+                Policy policy = POLICY;
+                List<MockCloud> clouds = policy.order(MockCloudIndex.eligible(label));
+                for (int i = 0; i < clouds.size(); i++) {
+                    MockCloud cloud = clouds.get(i);
+                    int remaining = currentDemand - availableCapacity;
+                    int cloudsLeft = clouds.size() - i;
+                    // when spreading, take a fair share, rounded up; anything a cloud cannot provision falls to the next ones
+                    int workloadToProvision = policy == Policy.ORDERED ? remaining : (remaining + cloudsLeft - 1) / cloudsLeft;
                     if (CloudProvisioningListener.all().stream().anyMatch(cl -> cl.canProvision(cloud, cloudState, workloadToProvision) != null)) {
                         continue;
                     }
@@ -315,7 +565,7 @@ public final class MockCloud extends Cloud {
                     LOGGER.fine(() -> cloud.name + " planned " + plannedNodes.size() + " new nodes");
                     Listeners.notify(CloudProvisioningListener.class, true, cl -> cl.onStarted(cloud, strategyState.getLabel(), plannedNodes));
                     strategyState.recordPendingLaunches(plannedNodes);
-                    availableCapacity += plannedNodes.size();
+                    availableCapacity += plannedNodes.stream().mapToInt(n -> n.numExecutors).sum();
                     var ac = availableCapacity;
                     LOGGER.fine(() -> cloud.name + " after provisioning, available capacity: " + ac + "; current demand: " + currentDemand);
                     if (availableCapacity >= currentDemand) { // added vs. kubernetes-plugin version; see note in canProvision
@@ -327,22 +577,27 @@ public final class MockCloud extends Cloud {
                 LOGGER.fine("Suggesting NodeProvisioner review");
                 Timer.get().schedule(label.nodeProvisioner::suggestReviewNow, 1L, TimeUnit.SECONDS);
             }
+            NodeProvisioner.StrategyDecision decision;
             if (availableCapacity >= currentDemand) {
                 LOGGER.fine("Provisioning completed");
-                return NodeProvisioner.StrategyDecision.PROVISIONING_COMPLETED;
+                decision = NodeProvisioner.StrategyDecision.PROVISIONING_COMPLETED;
             } else {
                 LOGGER.fine("Provisioning not complete, consulting remaining strategies");
-                return NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
+                decision = NodeProvisioner.StrategyDecision.CONSULT_REMAINING_STRATEGIES;
             }
+            event.label = label != null ? label.getExpression() : null;
+            event.demand = currentDemand;
+            event.capacityBefore = previousCapacity;
+            event.capacityAfter = availableCapacity;
+            event.decision = decision.name();
+            event.commit();
+            return decision;
         }
         @Extension public static class FastProvisioning extends QueueListener {
             @Override public void onEnterBuildable(Queue.BuildableItem item) {
-                final Jenkins jenkins = Jenkins.get();
                 final Label label = item.getAssignedLabel();
-                for (Cloud cloud : jenkins.clouds) {
-                    if (cloud instanceof MockCloud && cloud.canProvision(new Cloud.CloudState(label, 0))) {
-                        (label == null ? jenkins.unlabeledNodeProvisioner : label.nodeProvisioner).suggestReviewNow();
-                    }
+                if (!MockCloudIndex.eligible(label).isEmpty()) {
+                    (label == null ? Jenkins.get().unlabeledNodeProvisioner : label.nodeProvisioner).suggestReviewNow();
                 }
             }
         }
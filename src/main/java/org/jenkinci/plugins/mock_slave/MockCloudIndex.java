@@ -0,0 +1,79 @@
+package org.jenkinci.plugins.mock_slave;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.slaves.Cloud;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jenkins.model.Jenkins;
+
+/**
+ * Remembers which {@link MockCloud}s can provision for a given label,
+ * so that provisioning does not need to match every cloud against every queue item.
+ * Recomputed whenever the configured clouds, or the labels or mode of a mock cloud, change.
+ */
+final class MockCloudIndex {
+
+    private record Entry(Cloud cloud, String labels, Node.Mode mode) {}
+
+    /** configuration for which {@link #byLabel} was computed */
+    private static List<Entry> snapshot = List.of();
+    private static final Map<Label, List<MockCloud>> byLabel = new HashMap<>();
+    /** for unlabeled items, which cannot be a key in {@link #byLabel} */
+    private static List<MockCloud> unlabeled;
+
+    private MockCloudIndex() {}
+
+    /**
+     * @param label as in {@link Cloud.CloudState#getLabel}
+     * @return mock clouds for which {@link MockCloud#canProvision} would be true, in configuration order
+     */
+    static synchronized List<MockCloud> eligible(@CheckForNull Label label) {
+        Jenkins j = Jenkins.get();
+        if (!upToDate(j)) {
+            List<Entry> entries = new ArrayList<>();
+            for (Cloud c : j.clouds) {
+                entries.add(c instanceof MockCloud mc ? new Entry(c, mc.getLabels(), mc.mode) : new Entry(c, null, null));
+            }
+            snapshot = entries;
+            byLabel.clear();
+            unlabeled = null;
+        }
+        if (label == null) {
+            if (unlabeled == null) {
+                unlabeled = compute(null);
+            }
+            return unlabeled;
+        }
+        return byLabel.computeIfAbsent(label, MockCloudIndex::compute);
+    }
+
+    private static boolean upToDate(Jenkins j) {
+        int i = 0;
+        for (Cloud c : j.clouds) {
+            if (i == snapshot.size()) {
+                return false;
+            }
+            Entry e = snapshot.get(i++);
+            if (e.cloud != c || c instanceof MockCloud mc && (!mc.getLabels().equals(e.labels) || mc.mode != e.mode)) {
+                return false;
+            }
+        }
+        return i == snapshot.size();
+    }
+
+    private static List<MockCloud> compute(@CheckForNull Label label) {
+        Cloud.CloudState state = new Cloud.CloudState(label, 0);
+        List<MockCloud> r = new ArrayList<>();
+        for (Entry e : snapshot) {
+            if (e.cloud instanceof MockCloud mc && mc.canProvision(state)) {
+                r.add(mc);
+            }
+        }
+        return List.copyOf(r);
+    }
+
+}
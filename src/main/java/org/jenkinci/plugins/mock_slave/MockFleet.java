@@ -0,0 +1,159 @@
+package org.jenkinci.plugins.mock_slave;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.model.Slave;
+import hudson.slaves.EphemeralNode;
+import hudson.slaves.RetentionStrategy;
+import hudson.util.FormValidation;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IllegalFormatException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import jenkins.model.Jenkins;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Template for a number of identical static mock agents.
+ * @see MockFleets
+ */
+public final class MockFleet extends AbstractDescribableImpl<MockFleet> {
+
+    private final String namePattern;
+    private final int count;
+    private String labels = "";
+    private int executors = 1;
+    private MockSlaveLauncher launcher = new MockSlaveLauncher(0, 0);
+
+    /**
+     * @param namePattern a {@link String#format} pattern applied to the agent index, from 1, such as {@code fleet-%04d}
+     */
+    @DataBoundConstructor public MockFleet(String namePattern, int count) {
+        this.namePattern = namePattern;
+        this.count = count;
+    }
+
+    public String getNamePattern() {
+        return namePattern;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String getLabels() {
+        return labels;
+    }
+
+    @DataBoundSetter public void setLabels(String labels) {
+        this.labels = Util.fixNull(labels);
+    }
+
+    public int getExecutors() {
+        return executors;
+    }
+
+    @DataBoundSetter public void setExecutors(int executors) {
+        this.executors = executors;
+    }
+
+    public MockSlaveLauncher getLauncher() {
+        return launcher;
+    }
+
+    @DataBoundSetter public void setLauncher(MockSlaveLauncher launcher) {
+        this.launcher = launcher;
+    }
+
+    /** Names of the agents described by this template, in order. */
+    List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            names.add(String.format(namePattern, i));
+        }
+        return names;
+    }
+
+    /** Creates the agents described by this template, keyed by name. */
+    Map<String, FleetSlave> expand() throws IOException, Descriptor.FormException {
+        // compared against existing agents so that unchanged ones need not be relaunched
+        String signature = labels + '\n' + executors + '\n' + Jenkins.XSTREAM2.toXML(launcher);
+        Map<String, FleetSlave> agents = new LinkedHashMap<>();
+        List<String> names = names();
+        for (int i = 1; i <= names.size(); i++) {
+            String name = names.get(i - 1);
+            FleetSlave agent = new FleetSlave(name, launcher, signature);
+            agent.setNodeDescription("Mock agent #" + i + " of " + namePattern);
+            agent.setNumExecutors(executors);
+            agent.setLabelString(labels);
+            agent.setRetentionStrategy(RetentionStrategy.NOOP); // MockFleets launches it
+            agents.put(name, agent);
+        }
+        return agents;
+    }
+
+    /**
+     * An agent created from a {@link MockFleet}.
+     * Kept only in memory, since it is recreated from the template at startup.
+     */
+    static final class FleetSlave extends Slave implements EphemeralNode {
+
+        final String signature;
+
+        private FleetSlave(String name, MockSlaveLauncher launcher, String signature) throws IOException, Descriptor.FormException {
+            super(name, MockSlave.root(name), launcher);
+            this.signature = signature;
+        }
+
+        @Override public Node asNode() {
+            return this;
+        }
+
+        @Extension public static final class DescriptorImpl extends SlaveDescriptor {
+
+            @Override public String getDisplayName() {
+                return "Mock Fleet Agent";
+            }
+
+            @Override public boolean isInstantiable() {
+                return false;
+            }
+
+        }
+
+    }
+
+    @Symbol("mockFleet")
+    @Extension public static final class DescriptorImpl extends Descriptor<MockFleet> {
+
+        @Override public String getDisplayName() {
+            return "Mock Agent Fleet";
+        }
+
+        public FormValidation doCheckNamePattern(@QueryParameter String namePattern, @QueryParameter int count) {
+            try {
+                String first = String.format(namePattern, 1);
+                if (first.equals(String.format(namePattern, 2))) {
+                    return FormValidation.error("Must include the agent index, as in fleet-%04d.");
+                }
+                String taken = MockFleets.takenByOtherNode(new MockFleet(namePattern, count).names());
+                if (taken != null) {
+                    return FormValidation.error("Would replace the existing agent " + taken + ".");
+                }
+                return FormValidation.ok("For example: " + first);
+            } catch (IllegalFormatException x) {
+                return FormValidation.error(x.getMessage());
+            }
+        }
+
+    }
+
+}
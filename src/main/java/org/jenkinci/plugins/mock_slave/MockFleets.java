@@ -0,0 +1,229 @@
+package org.jenkinci.plugins.mock_slave;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest2;
+
+/**
+ * Maintains large numbers of static mock agents defined by {@link MockFleet} templates.
+ * The agents are kept in memory only and recreated from the templates at startup;
+ * they are added to Jenkins in one batch and then launched a few at a time.
+ */
+@Symbol("mockFleets")
+@Extension public final class MockFleets extends GlobalConfiguration {
+
+    private static final Logger LOGGER = Logger.getLogger(MockFleets.class.getName());
+
+    private List<MockFleet> fleets = new ArrayList<>();
+    private int parallelism = 8;
+
+    public MockFleets() {
+        load();
+    }
+
+    public static MockFleets get() {
+        return GlobalConfiguration.all().getInstance(MockFleets.class);
+    }
+
+    public List<MockFleet> getFleets() {
+        return fleets;
+    }
+
+    @DataBoundSetter public void setFleets(List<MockFleet> fleets) {
+        this.fleets = fleets != null ? new ArrayList<>(fleets) : new ArrayList<>();
+    }
+
+    /** Maximum number of fleet agents to launch at once. */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @DataBoundSetter public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    @Override public boolean configure(StaplerRequest2 req, JSONObject json) throws Descriptor.FormException {
+        List<MockFleet> old = fleets;
+        fleets = new ArrayList<>(); // in case all were deleted
+        req.bindJSON(this, json);
+        String problem = collision(fleets);
+        if (problem != null) {
+            fleets = old;
+            throw new Descriptor.FormException(problem, "fleets");
+        }
+        save();
+        return true;
+    }
+
+    /**
+     * Checks that fleets neither share agent names nor would replace other agents.
+     * @return a description of the first collision, or null
+     */
+    static String collision(List<MockFleet> fleets) {
+        Map<String, String> patterns = new HashMap<>();
+        for (MockFleet fleet : fleets) {
+            for (String name : fleet.names()) {
+                String other = patterns.putIfAbsent(name, fleet.getNamePattern());
+                if (other != null) {
+                    return "Fleets " + other + " and " + fleet.getNamePattern() + " both define " + name;
+                }
+            }
+            String taken = takenByOtherNode(fleet.names());
+            if (taken != null) {
+                return "Fleet " + fleet.getNamePattern() + " would replace the existing agent " + taken;
+            }
+        }
+        return null;
+    }
+
+    /** @return the first of these names used by a node not belonging to any fleet, or null */
+    static String takenByOtherNode(Collection<String> names) {
+        Jenkins j = Jenkins.get();
+        for (String name : names) {
+            Node n = j.getNode(name);
+            if (n != null && !(n instanceof MockFleet.FleetSlave)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /** Also brings the agents in line with the updated templates. */
+    @Override public synchronized void save() {
+        super.save();
+        if (Jenkins.get().getInitLevel() == InitMilestone.COMPLETED) {
+            try {
+                apply();
+            } catch (IOException | Descriptor.FormException x) {
+                LOGGER.log(Level.WARNING, "failed to update mock fleets", x);
+            }
+        }
+    }
+
+    @Initializer(after = InitMilestone.JOB_CONFIG_ADAPTED)
+    public static void startup() throws IOException, Descriptor.FormException {
+        MockFleets config = get();
+        if (config != null && !config.fleets.isEmpty()) {
+            config.apply();
+        }
+    }
+
+    /**
+     * Adds missing or changed fleet agents and removes obsolete ones, then launches the new ones.
+     */
+    synchronized void apply() throws IOException, Descriptor.FormException {
+        Map<String, MockFleet.FleetSlave> wanted = new LinkedHashMap<>();
+        for (MockFleet fleet : fleets) {
+            for (Map.Entry<String, MockFleet.FleetSlave> entry : fleet.expand().entrySet()) {
+                if (wanted.putIfAbsent(entry.getKey(), entry.getValue()) != null) {
+                    LOGGER.warning(() -> "Not creating " + entry.getKey() + " from " + fleet.getNamePattern() + " as an earlier fleet already defines it");
+                }
+            }
+        }
+        long start = System.nanoTime();
+        int[] counts;
+        try {
+            // under the queue lock so that agents added or removed concurrently, such as by NodeProvisioner, are not lost or resurrected
+            counts = Queue.withLock((Callable<int[]>) () -> swap(wanted));
+        } catch (IOException | RuntimeException x) {
+            throw x;
+        } catch (Exception x) {
+            throw new IOException(x);
+        }
+        if (counts == null) {
+            return;
+        }
+        LOGGER.info(String.format("Added %d and removed %d mock fleet agents (%d unchanged) in %dms", wanted.size(), counts[1], counts[0], TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        launch(new ArrayList<>(wanted.values()));
+    }
+
+    /**
+     * Replaces the fleet agents in Jenkins with the wanted ones, leaving other nodes alone.
+     * Must be called with the queue lock held.
+     * @param wanted all fleet agents; on return, only those which were actually added
+     * @return the number of agents kept and removed, or null if nothing changed
+     */
+    private static int[] swap(Map<String, MockFleet.FleetSlave> wanted) throws IOException {
+        Jenkins j = Jenkins.get();
+        List<Node> nodes = new ArrayList<>();
+        int kept = 0;
+        int removed = 0;
+        for (Node n : j.getNodes()) {
+            if (n instanceof MockFleet.FleetSlave existing) {
+                MockFleet.FleetSlave replacement = wanted.get(existing.getNodeName());
+                if (replacement != null && replacement.signature.equals(existing.signature)) {
+                    wanted.remove(existing.getNodeName());
+                    nodes.add(existing);
+                    kept++;
+                } else {
+                    removed++;
+                }
+            } else {
+                nodes.add(n);
+                if (wanted.remove(n.getNodeName()) != null) {
+                    // replacing it by name would also delete its configuration, as fleet agents are ephemeral
+                    LOGGER.warning(() -> "Not creating mock fleet agent " + n.getNodeName() + " as another agent already has that name");
+                }
+            }
+        }
+        if (wanted.isEmpty() && removed == 0) {
+            return null;
+        }
+        nodes.addAll(wanted.values());
+        j.setNodes(nodes); // one computer list update rather than one per agent
+        return new int[] {kept, removed};
+    }
+
+    private void launch(List<MockFleet.FleetSlave> agents) {
+        if (agents.isEmpty()) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism), new NamingThreadFactory(new DaemonThreadFactory(), "MockFleets.launch"));
+        long start = System.nanoTime();
+        for (MockFleet.FleetSlave agent : agents) {
+            pool.submit(() -> {
+                Computer c = agent.toComputer();
+                if (c != null) {
+                    try {
+                        c.connect(false).get();
+                    } catch (Exception x) {
+                        LOGGER.log(Level.WARNING, "failed to launch " + agent.getNodeName(), x);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        Computer.threadPoolForRemoting.submit(() -> {
+            if (pool.awaitTermination(1, TimeUnit.HOURS)) {
+                LOGGER.info(String.format("Launched %d mock fleet agents in %dms", agents.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+            }
+            return null;
+        });
+    }
+
+}
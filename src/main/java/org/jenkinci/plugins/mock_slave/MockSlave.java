@@ -29,7 +29,6 @@ import hudson.model.Descriptor;
 import hudson.model.Slave;
 import java.io.File;
 import java.io.IOException;
-import jenkins.model.Jenkins;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 
@@ -41,7 +40,7 @@ public final class MockSlave extends Slave {
 
     /** Provides a predictable {@code remoteFS} unique for a given slave name and Jenkins instance. */
     static String root(String slaveName) {
-        return new File(new File(Jenkins.get().getRootDir(), "mock-agents"), slaveName).getAbsolutePath();
+        return new File(AgentRoots.dir(), slaveName).getAbsolutePath();
     }
     
     @Symbol("mock")
@@ -24,7 +24,6 @@
 
 package org.jenkinci.plugins.mock_slave;
 
-import hudson.EnvVars;
 import hudson.Extension;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
@@ -35,15 +34,20 @@ import hudson.remoting.Which;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.ComputerListener;
 import hudson.slaves.SlaveComputer;
-import hudson.util.ProcessTree;
-import hudson.util.StreamCopyThread;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
@@ -53,13 +57,26 @@ import jenkins.model.Jenkins;
 import org.apache.commons.io.FileUtils;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 public class MockSlaveLauncher extends ComputerLauncher {
 
     private static final Logger LOGGER = Logger.getLogger(MockSlaveLauncher.class.getName());
 
+    /** Directory under {@code JENKINS_HOME} holding {@link TrafficRecorder} logs. */
+    static final String RECORDINGS = "mock-agent-recordings";
+
     public final int latency;
     public final int bandwidth;
+    /** If set, {@link #upstreamLatency} and {@link #upstreamBandwidth} apply to data sent from the agent, rather than {@link #latency} and {@link #bandwidth}. */
+    private boolean asymmetric;
+    private int upstreamLatency;
+    private int upstreamBandwidth;
+    /** If set, all channel traffic is saved under {@link #RECORDINGS}. */
+    private boolean record;
+    private Transport transport;
+    /** If set, latencies are in µs rather than ms, and are timed precisely. */
+    private boolean microseconds;
     
     @DataBoundConstructor
     public MockSlaveLauncher(int latency, int bandwidth) {
@@ -67,62 +84,302 @@ public class MockSlaveLauncher extends ComputerLauncher {
         this.bandwidth = bandwidth;
     }
 
+    public boolean isAsymmetric() {
+        return asymmetric;
+    }
+
+    @DataBoundSetter public void setAsymmetric(boolean asymmetric) {
+        this.asymmetric = asymmetric;
+    }
+
+    public int getUpstreamLatency() {
+        return upstreamLatency;
+    }
+
+    @DataBoundSetter public void setUpstreamLatency(int upstreamLatency) {
+        this.upstreamLatency = upstreamLatency;
+    }
+
+    public int getUpstreamBandwidth() {
+        return upstreamBandwidth;
+    }
+
+    @DataBoundSetter public void setUpstreamBandwidth(int upstreamBandwidth) {
+        this.upstreamBandwidth = upstreamBandwidth;
+    }
+
+    public boolean isRecord() {
+        return record;
+    }
+
+    @DataBoundSetter public void setRecord(boolean record) {
+        this.record = record;
+    }
+
+    public Transport getTransport() {
+        return transport != null ? transport : Transport.AUTO;
+    }
+
+    @DataBoundSetter public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public boolean isMicroseconds() {
+        return microseconds;
+    }
+
+    @DataBoundSetter public void setMicroseconds(boolean microseconds) {
+        this.microseconds = microseconds;
+    }
+
+    private long nanos(int latency) {
+        return (microseconds ? TimeUnit.MICROSECONDS : TimeUnit.MILLISECONDS).toNanos(latency);
+    }
+
+    private int effectiveUpstreamLatency() {
+        return asymmetric ? upstreamLatency : latency;
+    }
+
+    private int effectiveUpstreamBandwidth() {
+        return asymmetric ? upstreamBandwidth : bandwidth;
+    }
+
     @Override public void launch(final SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
         Listener.launchTimes.put(computer, System.currentTimeMillis());
+        MockAgentEvents.LaunchPhase launchEvent = new MockAgentEvents.LaunchPhase();
+        launchEvent.agent = computer.getName();
+        launchEvent.phase = "launch to online";
+        launchEvent.begin();
+        Listener.launchEvents.put(computer, launchEvent);
         listener.getLogger().println("Launching");
+        MockAgentEvents.LaunchPhase slotEvent = new MockAgentEvents.LaunchPhase();
+        slotEvent.agent = computer.getName();
+        slotEvent.phase = "launch slot wait";
+        slotEvent.begin();
+        try (LaunchRamp.Permit permit = LaunchRamp.acquire(computer.getName())) {
+            slotEvent.commit();
+            if (permit.waited > 0) {
+                listener.getLogger().printf("waited %dms for a launch slot%n", permit.waited);
+            }
+            launch(computer, listener, permit);
+        }
+    }
+
+    private void launch(final SlaveComputer computer, TaskListener listener, LaunchRamp.Permit permit) throws IOException, InterruptedException {
         File slaveJar = Which.jarFile(Which.class);
         if (!slaveJar.isFile()) {
             slaveJar = File.createTempFile("slave", ".jar");
             slaveJar.deleteOnExit();
             FileUtils.copyURLToFile(new Slave.JnlpJar("slave.jar").getURL(), slaveJar);
         }
-        final EnvVars cookie = EnvVars.createCookie();
+        boolean throttled = latency > 0 || bandwidth > 0 || effectiveUpstreamLatency() > 0 || effectiveUpstreamBandwidth() > 0;
+        Transport transport = getTransport();
+        if (transport == Transport.AUTO) {
+            transport = throttled ? (unixSocketsSupported() ? Transport.UNIX : Transport.TCP) : Transport.STDIO;
+        }
         InputStream is;
         OutputStream os;
         final Process proc;
-        if (latency > 0 || bandwidth > 0) {
+        AgentHost.Lease lease = null;
+        MockAgentEvents.LaunchPhase startEvent = new MockAgentEvents.LaunchPhase();
+        startEvent.agent = computer.getName();
+        startEvent.phase = "process start over " + transport;
+        startEvent.begin();
+        long processStart = System.nanoTime();
+        switch (transport) {
+        case TCP: {
             File portFile = File.createTempFile("jenkins-port", "");
-            final ProcessBuilder pb = new ProcessBuilder("java", "-jar", slaveJar.getAbsolutePath(), "-tcp", portFile.getAbsolutePath());
-            pb.environment().putAll(cookie);
-            proc = pb.start();
-            while (portFile.length() == 0) {
-                Thread.sleep(100);
+            try {
+                final ProcessBuilder pb = new ProcessBuilder("java", "-jar", slaveJar.getAbsolutePath(), "-tcp", portFile.getAbsolutePath());
+                proc = pb.start();
+                try {
+                    while (portFile.length() == 0) {
+                        if (!proc.isAlive()) {
+                            throw new IOException("agent exited with status " + proc.exitValue() + " before writing " + portFile);
+                        }
+                        Thread.sleep(100);
+                    }
+                    int port = Integer.parseInt(FileUtils.readFileToString(portFile, StandardCharsets.US_ASCII));
+                    listener.getLogger().println("connecting to localhost:" + port);
+                    Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+                    is = s.getInputStream();
+                    os = s.getOutputStream();
+                } catch (IOException | InterruptedException | RuntimeException x) {
+                    // otherwise it would wait for a connection forever
+                    ProcessReaper.reap(proc, computer.getName());
+                    throw x;
+                }
+            } finally {
+                Files.deleteIfExists(portFile.toPath());
+            }
+            break;
+        }
+        case UNIX: {
+            // keep the path short: sun_path is limited to around 100 bytes
+            Path dir = Files.createTempDirectory("mock-agent");
+            Path socket = dir.resolve("agent.sock");
+            SocketChannel ch;
+            try {
+                ProcessBuilder pb = new ProcessBuilder("java", "-cp", slaveJar.getAbsolutePath() + File.pathSeparator + bootstrapClasspath(), AgentBootstrap.class.getName(), "unix", socket.toString());
+                proc = pb.start();
+                try {
+                    while (!Files.exists(socket)) {
+                        if (!proc.isAlive()) {
+                            throw new IOException("agent exited with status " + proc.exitValue() + " before listening on " + socket);
+                        }
+                        Thread.sleep(100);
+                    }
+                    listener.getLogger().println("connecting to " + socket);
+                    ch = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+                } catch (IOException | InterruptedException | RuntimeException x) {
+                    ProcessReaper.reap(proc, computer.getName());
+                    throw x;
+                }
+            } finally {
+                // an established connection does not need the name any more
+                Files.deleteIfExists(socket);
+                Files.deleteIfExists(dir);
             }
-            int port = Integer.parseInt(FileUtils.readFileToString(portFile, StandardCharsets.US_ASCII));
-            listener.getLogger().println("connecting to localhost:" + port);
-            Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
-            is = s.getInputStream();
-            os = s.getOutputStream();
-            listener.getLogger().printf("throttling with latency=%dms bandwidth=%dbps%n", latency, bandwidth);
-            Throttler t = new Throttler(latency, bandwidth, is, os);
-            is = t.is();
-            os = t.os();
-        } else {
+            is = new AgentBootstrap.SocketInputStream(ch);
+            os = new AgentBootstrap.SocketOutputStream(ch);
+            break;
+        }
+        case HOSTED: {
+            if (!unixSocketsSupported()) {
+                throw new IOException("hosted agents require Unix domain sockets");
+            }
+            proc = null;
+            lease = AgentHost.attach(slaveJar.getAbsolutePath() + File.pathSeparator + bootstrapClasspath(), listener.getLogger());
+            is = new AgentBootstrap.SocketInputStream(lease.channel);
+            os = new AgentBootstrap.SocketOutputStream(lease.channel);
+            break;
+        }
+        default: {
             ProcessBuilder pb = new ProcessBuilder("java", "-jar", slaveJar.getAbsolutePath());
-            pb.environment().putAll(cookie);
             proc = pb.start();
             is = proc.getInputStream();
             os = proc.getOutputStream();
         }
-        new StreamCopyThread("stderr copier for remote agent on " + computer.getDisplayName(), proc.getErrorStream(), listener.getLogger()).start();
-        computer.setChannel(is, os, listener.getLogger(), new Channel.Listener() {
-            @Override public void onClosed(Channel channel, IOException cause) {
-                Jenkins j = Jenkins.get();
-                if (j == null || j.isTerminating()) {
-                    LOGGER.log(Level.INFO, "Leaving processes running on {0} during shutdown", computer.getName());
+        }
+        startEvent.commit();
+        long processStarted = System.nanoTime();
+        final AgentHost.Lease hostLease = lease;
+        try {
+            final Throttler throttler;
+            if (throttled) {
+                String unit = microseconds ? "µs" : "ms";
+                if (asymmetric) {
+                    listener.getLogger().printf("throttling with downstream latency=%d%s bandwidth=%dbps, upstream latency=%d%s bandwidth=%dbps%n", latency, unit, bandwidth, upstreamLatency, unit, upstreamBandwidth);
                 } else {
-                    LOGGER.log(Level.FINE, "Killing any processes still running on {0}", computer.getName());
-                    try {
-                        ProcessTree.get().killAll(proc, cookie);
-                    } catch (InterruptedException e) {
-                        LOGGER.log(Level.INFO, "interrupted", e);
+                    listener.getLogger().printf("throttling with latency=%d%s bandwidth=%dbps%n", latency, unit, bandwidth);
+                }
+                Throttler.Clock clock = (microseconds ? Throttler.Clock.PRECISE : Throttler.Clock.SYSTEM).scaled(Throttler.TIME_SCALE);
+                throttler = new Throttler(nanos(effectiveUpstreamLatency()), effectiveUpstreamBandwidth(), nanos(latency), bandwidth, clock, is, os);
+                MockAgentEvents.watch(throttler, computer.getName());
+                is = throttler.is();
+                os = throttler.os();
+            } else {
+                throttler = null;
+            }
+            final TrafficRecorder recorder;
+            if (record) {
+                File log = new File(new File(Jenkins.get().getRootDir(), RECORDINGS), computer.getName() + "-" + System.currentTimeMillis() + TrafficRecorder.EXTENSION);
+                listener.getLogger().println("recording channel traffic to " + log);
+                recorder = new TrafficRecorder(log);
+                is = recorder.upstream(is);
+                os = recorder.downstream(os);
+            } else {
+                recorder = null;
+            }
+            if (proc != null) {
+                LaunchLogPipe.start("stderr copier for remote agent on " + computer.getDisplayName(), proc.getErrorStream(), listener.getLogger());
+            }
+            MockAgentEvents.LaunchPhase channelEvent = new MockAgentEvents.LaunchPhase();
+            channelEvent.agent = computer.getName();
+            channelEvent.phase = "channel handshake";
+            channelEvent.begin();
+            computer.setChannel(is, os, listener.getLogger(), new Channel.Listener() {
+                @Override public void onClosed(Channel channel, IOException cause) {
+                    if (throttler != null) {
+                        MockAgentEvents.unwatch(throttler);
+                    }
+                    if (recorder != null) {
+                        try {
+                            recorder.close();
+                        } catch (IOException x) {
+                            LOGGER.log(Level.WARNING, "failed to save traffic recording for " + computer.getName(), x);
+                        }
+                    }
+                    if (hostLease != null) {
+                        // other agents may still be using the process
+                        hostLease.close();
+                        return;
+                    }
+                    Jenkins j = Jenkins.get();
+                    if (j == null || j.isTerminating()) {
+                        LOGGER.log(Level.INFO, "Leaving processes running on {0} during shutdown", computer.getName());
+                    } else {
+                        LOGGER.log(Level.FINE, "Killing any processes still running on {0}", computer.getName());
+                        ProcessReaper.reap(proc, computer.getName());
                     }
                 }
+            });
+            channelEvent.commit();
+        } catch (IOException | InterruptedException | RuntimeException x) {
+            if (hostLease != null) {
+                // otherwise the host would never learn this agent is gone
+                hostLease.close();
             }
-        });
+            if (proc != null) {
+                ProcessReaper.reap(proc, computer.getName());
+            }
+            throw x;
+        }
+        long handshakeDone = System.nanoTime();
+        listener.getLogger().printf("launch phases: slot wait %dms, process start %dms, channel handshake %dms%n",
+            permit.waited, TimeUnit.NANOSECONDS.toMillis(processStarted - processStart), TimeUnit.NANOSECONDS.toMillis(handshakeDone - processStarted));
         LOGGER.log(Level.INFO, "agent launched for {0}", computer.getDisplayName());
     }
 
+    private static File bootstrapClasspath;
+
+    private static synchronized File bootstrapClasspath() throws IOException {
+        File dir = new File(Jenkins.get().getRootDir(), "mock-agent-bootstrap");
+        // JENKINS_HOME may differ from last time (as between tests), or the directory may have been deleted
+        if (!dir.equals(bootstrapClasspath) || !AgentBootstrap.isInstalled(dir)) {
+            bootstrapClasspath = AgentBootstrap.install(dir);
+        }
+        return bootstrapClasspath;
+    }
+
+    private static Boolean unixSocketsSupported;
+
+    private static synchronized boolean unixSocketsSupported() {
+        if (unixSocketsSupported == null) {
+            try (ServerSocketChannel probe = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                unixSocketsSupported = true;
+            } catch (IOException | UnsupportedOperationException x) {
+                LOGGER.log(Level.FINE, "Unix domain sockets unavailable, falling back to TCP", x);
+                unixSocketsSupported = false;
+            }
+        }
+        return unixSocketsSupported;
+    }
+
+    /** How the controller talks to the agent process. */
+    public enum Transport {
+        /** {@link #UNIX} (or {@link #TCP} where unsupported) if throttled, else {@link #STDIO}. */
+        AUTO,
+        /** Standard input and output of the agent process. */
+        STDIO,
+        /** Loopback TCP connection. */
+        TCP,
+        /** Unix domain socket. */
+        UNIX,
+        /** Unix domain socket to an {@link AgentHost} shared with other agents, rather than a process of its own. */
+        HOSTED
+    }
+
     @Symbol("mock")
     @Extension
     public static class DescriptorImpl extends Descriptor<ComputerLauncher> {
@@ -134,8 +391,13 @@ public class MockSlaveLauncher extends ComputerLauncher {
     @Extension
     public static class Listener extends ComputerListener {
         static final Map<Computer, Long> launchTimes = new WeakHashMap<>();
+        static final Map<Computer, MockAgentEvents.LaunchPhase> launchEvents = Collections.synchronizedMap(new WeakHashMap<>());
         @Override
         public void onOnline(Computer c, TaskListener listener) throws IOException, InterruptedException {
+            MockAgentEvents.LaunchPhase launchEvent = launchEvents.remove(c);
+            if (launchEvent != null) {
+                launchEvent.commit();
+            }
             Long launchTime = launchTimes.remove(c);
             if (launchTime != null) {
                 long seconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - launchTime);
@@ -0,0 +1,91 @@
+package org.jenkinci.plugins.mock_slave;
+
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Queue;
+import hudson.slaves.AbstractCloudComputer;
+import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.CloudRetentionStrategy;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.durabletask.executors.OnceRetentionStrategy;
+
+/**
+ * Terminates a cloud agent once it has run a fixed number of tasks.
+ * Each executor runs at most one task: as soon as any task finishes, no more are accepted,
+ * and the agent is terminated once the rest have drained.
+ * Unlike {@link OnceRetentionStrategy}, may be used on an {@link hudson.slaves.EphemeralNode},
+ * and with more than one executor.
+ */
+final class OneShotRetentionStrategy extends CloudRetentionStrategy implements ExecutorListener {
+
+    private static final Logger LOGGER = Logger.getLogger(OneShotRetentionStrategy.class.getName());
+
+    /** maximum number of tasks to accept in total, normally the number of executors */
+    private final int tasks;
+    private transient int accepted;
+
+    OneShotRetentionStrategy(int idleMinutes, int tasks) {
+        super(idleMinutes);
+        this.tasks = tasks;
+    }
+
+    @Override public long check(AbstractCloudComputer c) {
+        if (!c.isAcceptingTasks() && c.isIdle()) {
+            terminate(c);
+            return 1;
+        }
+        return super.check(c);
+    }
+
+    @Override public void taskAccepted(Executor executor, Queue.Task task) {
+        synchronized (this) {
+            if (++accepted < tasks) {
+                return;
+            }
+        }
+        executor.getOwner().setAcceptingTasks(false);
+    }
+
+    @Override public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+        drained(executor);
+    }
+
+    @Override public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+        drained(executor);
+    }
+
+    private void drained(Executor executor) {
+        AbstractCloudComputer<?> c = (AbstractCloudComputer<?>) executor.getOwner();
+        c.setAcceptingTasks(false); // just in case
+        Computer.threadPoolForRemoting.submit(() -> {
+            // the executor which just finished is still busy for a moment
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!c.isIdle() && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+            }
+            // otherwise check will pick it up later
+            Queue.withLock(() -> {
+                if (c.isIdle()) {
+                    terminate(c);
+                }
+            });
+            return null;
+        });
+    }
+
+    private static void terminate(AbstractCloudComputer<?> c) {
+        AbstractCloudSlave node = c.getNode();
+        if (node != null) {
+            try {
+                node.terminate();
+            } catch (InterruptedException | IOException x) {
+                LOGGER.log(Level.WARNING, "failed to terminate " + c.getName(), x);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package org.jenkinci.plugins.mock_slave;
+
+import hudson.model.Computer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Terminates agent processes along with anything they started.
+ * Works directly from {@link ProcessHandle}s rather than scanning the process table,
+ * and does so off the calling thread (typically a Remoting channel thread).
+ */
+final class ProcessReaper {
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessReaper.class.getName());
+
+    /** Seconds to wait for processes to exit after a polite termination request before killing them forcibly. */
+    @SuppressWarnings("FieldMayBeFinal")
+    static /* not final */ int TIMEOUT = SystemProperties.getInteger(ProcessReaper.class.getName() + ".TIMEOUT", 10);
+
+    private ProcessReaper() {}
+
+    /**
+     * Asynchronously terminates a process and its descendants.
+     * @param name used for logging
+     * @return completed once all processes have exited (or could not be killed)
+     */
+    static CompletableFuture<Void> reap(Process proc, String name) {
+        return CompletableFuture.runAsync(() -> reapNow(proc, name), Computer.threadPoolForRemoting);
+    }
+
+    private static void reapNow(Process proc, String name) {
+        // snapshot the tree first: once the agent dies, its children are reparented and can no longer be found from it
+        List<ProcessHandle> tree = new ArrayList<>();
+        proc.descendants().forEach(tree::add);
+        tree.add(proc.toHandle());
+        LOGGER.fine(() -> "terminating " + tree.size() + " processes for " + name);
+        MockAgentEvents.Termination event = new MockAgentEvents.Termination();
+        event.agent = name;
+        event.processes = tree.size();
+        event.begin();
+        for (ProcessHandle h : tree) {
+            h.destroy();
+        }
+        try {
+            CompletableFuture.allOf(tree.stream().map(ProcessHandle::onExit).toArray(CompletableFuture[]::new)).get(TIMEOUT, TimeUnit.SECONDS);
+        } catch (TimeoutException x) {
+            LOGGER.fine(() -> "forcibly killing processes for " + name + " still running after " + TIMEOUT + "s");
+            event.forced = true;
+            for (ProcessHandle h : tree) {
+                h.destroyForcibly();
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException x) {
+            LOGGER.log(Level.WARNING, "failed to wait for processes of " + name, x);
+        }
+        try {
+            // also collects the exit status so no zombie is left behind
+            if (!proc.waitFor(TIMEOUT, TimeUnit.SECONDS)) {
+                LOGGER.warning(() -> "agent process for " + name + " could not be killed");
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        event.commit();
+    }
+
+}
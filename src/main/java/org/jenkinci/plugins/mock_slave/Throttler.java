@@ -3,29 +3,61 @@ package org.jenkinci.plugins.mock_slave;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
 
 /**
  * Deliberately slows down am I/O channel by a measured amount.
  */
 final class Throttler {
 
-    /** ms before written data becomes available */
-    private final int latency;
-    /** bps that can be transferred */
-    private final int bandwidth;
-    private final InputStream is;
+    private static final Logger LOGGER = Logger.getLogger(Throttler.class.getName());
+
+    /**
+     * Simulated seconds per real second for throttled agents launched by {@link MockSlaveLauncher}.
+     * @see Clock#scaled
+     */
+    @SuppressWarnings("FieldMayBeFinal")
+    static /* not final */ double TIME_SCALE = timeScale(SystemProperties.getString(Throttler.class.getName() + ".TIME_SCALE", "1"));
+
+    private static double timeScale(String value) {
+        try {
+            double scale = Double.parseDouble(value);
+            if (scale > 0 && Double.isFinite(scale)) {
+                return scale;
+            }
+        } catch (NumberFormatException x) {
+            // fall through
+        }
+        LOGGER.warning(() -> "ignoring TIME_SCALE of " + value + "; must be a positive number");
+        return 1;
+    }
+
+    /** Timestamp marking the end of a stream; any real timestamp may be zero or negative. */
+    private static final long EOF = Long.MIN_VALUE;
+
+    private final DelayedInputStream is;
     private final OutputStream os;
+    private final DelayedInputStream outgoing;
 
+    /**
+     * @param upstreamLatency ns before data sent from the agent becomes available to {@link #is}
+     * @param upstreamBandwidth bytes per second that the agent can send, or zero for unlimited
+     * @param downstreamLatency ns before data written to {@link #os} is sent to the agent
+     * @param downstreamBandwidth bytes per second that can be sent to the agent, or zero for unlimited
+     * @param clock source of time against which latency and bandwidth are measured
+     */
     @SuppressWarnings("CallToThreadStartDuringObjectConstruction")
-    Throttler(int latency, int bandwidth, InputStream is, OutputStream os) throws IOException {
-        this.latency = latency;
-        this.bandwidth = bandwidth;
+    Throttler(long upstreamLatency, int upstreamBandwidth, long downstreamLatency, int downstreamBandwidth, Clock clock, InputStream is, OutputStream os) throws IOException {
         UnboundedBlockingByteQueue in = new UnboundedBlockingByteQueue("in", 128 * 1024, 1.3f);
-        new StreamCopyThread("incoming", is, new DelayedOutputStream(in)).start();
-        this.is = new DelayedInputStream(in);
+        new StreamCopyThread("incoming", is, new DelayedOutputStream(in, clock, upstreamLatency, upstreamBandwidth)).start();
+        this.is = new DelayedInputStream(in, clock);
         UnboundedBlockingByteQueue out = new UnboundedBlockingByteQueue("out", 128 * 1024, 1.3f);
-        new StreamCopyThread("outgoing", new DelayedInputStream(out), os).start();
-        this.os = new DelayedOutputStream(out);
+        outgoing = new DelayedInputStream(out, clock);
+        new StreamCopyThread("outgoing", outgoing, os).start();
+        this.os = new DelayedOutputStream(out, clock, downstreamLatency, downstreamBandwidth);
     }
 
     InputStream is() {
@@ -36,15 +68,138 @@ final class Throttler {
         return os;
     }
 
+    /** Bytes sent by the agent which have not yet been delivered. */
+    int queuedUpstream() {
+        return is.available();
+    }
+
+    /** Bytes sent to the agent which have not yet been delivered. */
+    int queuedDownstream() {
+        return outgoing.available();
+    }
+
+    /** ns after its scheduled arrival time that the last byte from the agent was actually read. */
+    long upstreamLateness() {
+        return is.lateness;
+    }
+
+    /** ns after its scheduled arrival time that the last byte to the agent was actually sent. */
+    long downstreamLateness() {
+        return outgoing.lateness;
+    }
+
+    /**
+     * Source of time for throttling.
+     * Timestamps are in nanoseconds with an arbitrary origin, as for {@link System#nanoTime}.
+     */
+    interface Clock {
+
+        /** Real time, accurate to within the scheduling granularity of the OS (typically tens of µs). */
+        Clock SYSTEM = new Clock() {
+            @Override public long nanos() {
+                return System.nanoTime();
+            }
+            @Override public void sleepUntil(long nanos) throws InterruptedException {
+                long remaining;
+                while ((remaining = nanos - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(remaining);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            }
+        };
+
+        /** Real time, busy-waiting for the last few µs of each delay so that sub-millisecond latencies are accurate. */
+        Clock PRECISE = new Clock() {
+            private final long spin = TimeUnit.MICROSECONDS.toNanos(50);
+            @Override public long nanos() {
+                return System.nanoTime();
+            }
+            @Override public void sleepUntil(long nanos) throws InterruptedException {
+                long remaining;
+                while ((remaining = nanos - System.nanoTime()) > 0) {
+                    if (remaining > spin) {
+                        LockSupport.parkNanos(remaining - spin);
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            }
+        };
+
+        long nanos();
+
+        /** Blocks until {@link #nanos} reaches the given value. */
+        void sleepUntil(long nanos) throws InterruptedException;
+
+        /**
+         * A clock running faster (or slower) than this one,
+         * so that scenarios with large latencies or small bandwidths can be run quickly.
+         * Only the throttling is accelerated; the processes at either end of the channel still run in real time.
+         * @param timeScale simulated seconds per real second
+         */
+        default Clock scaled(double timeScale) {
+            if (!(timeScale > 0 && Double.isFinite(timeScale))) {
+                throw new IllegalArgumentException("time scale must be positive: " + timeScale);
+            }
+            if (timeScale == 1) {
+                return this;
+            }
+            Clock base = this;
+            long origin = base.nanos();
+            return new Clock() {
+                @Override public long nanos() {
+                    return (long) ((base.nanos() - origin) * timeScale);
+                }
+                @Override public void sleepUntil(long nanos) throws InterruptedException {
+                    base.sleepUntil(origin + (long) Math.ceil(nanos / timeScale));
+                }
+            };
+        }
+
+    }
+
+    /**
+     * A clock which only moves when told to, for deterministic tests.
+     */
+    static final class ManualClock implements Clock {
+
+        private long now;
+
+        @Override public synchronized long nanos() {
+            return now;
+        }
+
+        @Override public synchronized void sleepUntil(long nanos) throws InterruptedException {
+            while (now < nanos) {
+                wait();
+            }
+        }
+
+        synchronized void advance(long nanos) {
+            now += nanos;
+            notifyAll();
+        }
+
+    }
+
     private static class DelayedInputStream extends InputStream {
 
         private final UnboundedBlockingByteQueue stream;
+        private final Clock clock;
+        /** ns behind schedule the reader is */
+        volatile long lateness;
 
-        DelayedInputStream(UnboundedBlockingByteQueue stream) {
+        DelayedInputStream(UnboundedBlockingByteQueue stream, Clock clock) {
             this.stream = stream;
+            this.clock = clock;
         }
 
-        @SuppressWarnings({"SleepWhileInLoop", "PointlessBitwiseExpression"})
+        @SuppressWarnings("PointlessBitwiseExpression")
         @Override public int read() throws IOException {
             try {
                 long t = ((long) stream.read() << 56) +
@@ -55,16 +210,13 @@ final class Throttler {
                          ((stream.read() & 255) << 16) +
                          ((stream.read() & 255) <<  8) +
                          ((stream.read() & 255) <<  0);
-                if (t == 0) { // EOF
+                if (t == EOF) {
                     //stream.log("got EOF");
                     return -1;
                 }
-                //stream.log("read time " + new Date(t));
-                long now;
-                while ((now = System.currentTimeMillis()) < t) {
-                    //stream.log("sleeping for " + (t - now) + "msec");
-                    Thread.sleep(t - now);
-                }
+                //stream.log("read time " + t);
+                clock.sleepUntil(t);
+                lateness = clock.nanos() - t;
                 byte b = stream.read();
                 //stream.log("read " + b);
                 return ((int) b + 256) % 256;
@@ -90,7 +242,7 @@ final class Throttler {
             return i;
         }
 
-        @Override public int available() throws IOException {
+        @Override public int available() {
             int r = stream.available() / 9;
             //stream.log(r + " bytes available");
             return r;
@@ -98,19 +250,44 @@ final class Throttler {
 
     }
 
-    private class DelayedOutputStream extends OutputStream {
+    private static class DelayedOutputStream extends OutputStream {
 
         private final UnboundedBlockingByteQueue stream;
+        private final Clock clock;
+        /** ns before written data becomes available */
+        private final long latency;
+        /** bytes per second that can be transferred, or zero for unlimited */
+        private final int bandwidth;
+        /** {@link Clock#nanos} when the link will have finished sending what was already written */
+        private long busyUntil = Long.MIN_VALUE;
+        /** {@link Clock#nanos} when the link last became busy after being idle */
+        private long burstStart;
+        /** bytes written since {@link #burstStart} */
+        private long burstBytes;
 
-        DelayedOutputStream(UnboundedBlockingByteQueue stream) {
+        DelayedOutputStream(UnboundedBlockingByteQueue stream, Clock clock, long latency, int bandwidth) {
             this.stream = stream;
+            this.clock = clock;
+            this.latency = latency;
+            this.bandwidth = bandwidth;
         }
 
         @SuppressWarnings("PointlessBitwiseExpression")
         @Override public void write(int b) throws IOException {
-            // XXX take bandwidth into account: possibly make t bigger if we have already written too much
-            long t = System.currentTimeMillis() + latency;
-            //stream.log("writing time " + new Date(t));
+            long t = clock.nanos();
+            if (bandwidth > 0) {
+                // each byte occupies the link for a fixed time, so a burst queues up behind earlier bytes;
+                // computed from the whole burst rather than added per byte, so that fractions of a ns do not get lost
+                if (t > busyUntil) { // idle; equal may still leave a fraction of a ns to go
+                    burstStart = t;
+                    burstBytes = 0;
+                }
+                burstBytes++;
+                busyUntil = burstStart + (long) (burstBytes * 1e9 / bandwidth);
+                t = busyUntil;
+            }
+            t += latency;
+            //stream.log("writing time " + t);
             stream.write((byte) (t >>> 56));
             stream.write((byte) (t >>> 48));
             stream.write((byte) (t >>> 40));
@@ -126,7 +303,7 @@ final class Throttler {
         @Override public void close() throws IOException {
             //stream.log("closing");
             for (int i = 0; i < 8; i++) {
-                stream.write((byte) 0);
+                stream.write((byte) (EOF >>> (56 - 8 * i)));
             }
         }
 
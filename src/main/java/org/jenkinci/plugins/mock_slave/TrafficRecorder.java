@@ -0,0 +1,143 @@
+package org.jenkinci.plugins.mock_slave;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+
+/**
+ * Captures both directions of an agent channel to a compact binary log.
+ * <p>The file starts with {@link #MAGIC}, a version byte, and the wall-clock start time in ms.
+ * Each record is then a direction byte ({@link #UPSTREAM} or {@link #DOWNSTREAM}),
+ * the ns elapsed since the previous record and the payload length (both as unsigned varints),
+ * and the payload itself.
+ * @see TrafficReplay
+ */
+final class TrafficRecorder implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(TrafficRecorder.class.getName());
+
+    /** Maximum number of recordings to keep in a directory; older ones are deleted as new ones start. Zero or negative for no limit. */
+    @SuppressWarnings("FieldMayBeFinal")
+    static /* not final */ int KEEP = SystemProperties.getInteger(TrafficRecorder.class.getName() + ".KEEP", 100);
+
+    /** File extension of recordings. */
+    static final String EXTENSION = ".mstr";
+
+    static final byte[] MAGIC = "MSTR".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    /** data sent from the agent to the controller */
+    static final byte UPSTREAM = 0;
+    /** data sent from the controller to the agent */
+    static final byte DOWNSTREAM = 1;
+
+    private final DataOutputStream log;
+    private long last;
+    private boolean closed;
+
+    TrafficRecorder(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+        if (dir != null) {
+            prune(dir, KEEP - 1);
+        }
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        log.write(MAGIC);
+        log.writeByte(VERSION);
+        log.writeLong(System.currentTimeMillis());
+        last = System.nanoTime();
+    }
+
+    /** Wraps the stream the controller reads from the agent. */
+    InputStream upstream(InputStream is) {
+        return new FilterInputStream(is) {
+            @Override public int read() throws IOException {
+                int c = super.read();
+                if (c != -1) {
+                    record(UPSTREAM, new byte[] {(byte) c}, 0, 1);
+                }
+                return c;
+            }
+            @Override public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    record(UPSTREAM, b, off, n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /** Wraps the stream the controller writes to the agent. */
+    OutputStream downstream(OutputStream os) {
+        return new FilterOutputStream(os) {
+            @Override public void write(int b) throws IOException {
+                out.write(b);
+                record(DOWNSTREAM, new byte[] {(byte) b}, 0, 1);
+            }
+            @Override public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                record(DOWNSTREAM, b, off, len);
+            }
+        };
+    }
+
+    private synchronized void record(byte direction, byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        log.writeByte(direction);
+        writeVarLong(log, now - last);
+        writeVarLong(log, len);
+        log.write(b, off, len);
+        last = now;
+    }
+
+    @Override public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            log.close();
+        }
+    }
+
+    /** Deletes the oldest recordings in a directory so that at most {@code keep} remain. */
+    static void prune(File dir, int keep) {
+        if (keep < 0) {
+            return;
+        }
+        File[] logs = dir.listFiles((d, name) -> name.endsWith(EXTENSION));
+        if (logs == null || logs.length <= keep) {
+            return;
+        }
+        Arrays.sort(logs, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < logs.length - keep; i++) {
+            File log = logs[i];
+            if (log.delete()) {
+                LOGGER.fine(() -> "deleted old recording " + log);
+            }
+        }
+    }
+
+    static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+}
@@ -0,0 +1,280 @@
+package org.jenkinci.plugins.mock_slave;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays back a log written by {@link TrafficRecorder}.
+ * <p>Run from the command line as
+ * {@code java -cp mock-slave.jar org.jenkinci.plugins.mock_slave.TrafficReplay <log> [<speed>] [tcp|unix|none]}.
+ * The recording is played back with its pacing divided by {@code speed} (default 1, real time; {@code Infinity} to not wait)
+ * over a connected pair of loopback TCP (the default) or Unix domain sockets:
+ * upstream data is written at the agent end, downstream data at the controller end, and both are drained at the other end.
+ * The time until the last byte arrives, compared with the time the replay itself took, shows how well the transport keeps up.
+ * The bytes are not interpreted, since a live Remoting endpoint would not accept a replayed handshake,
+ * so this measures transport overhead rather than command processing.
+ */
+public final class TrafficReplay implements Closeable {
+
+    private final DataInputStream in;
+
+    TrafficReplay(File log) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(log), 64 * 1024));
+        byte[] magic = new byte[TrafficRecorder.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, TrafficRecorder.MAGIC)) {
+            in.close();
+            throw new IOException(log + " is not a traffic recording");
+        }
+        int version = in.readUnsignedByte();
+        if (version != TrafficRecorder.VERSION) {
+            in.close();
+            throw new IOException("unsupported recording version " + version);
+        }
+        in.readLong(); // start time
+    }
+
+    /**
+     * Replays all records.
+     * @param speed factor by which to speed up the recorded pacing; {@link Double#POSITIVE_INFINITY} to not wait at all
+     * @param upstream receives data originally sent by the agent, or null to skip it
+     * @param downstream receives data originally sent by the controller, or null to skip it
+     * @return the number of bytes replayed in each direction, indexed by {@link TrafficRecorder#UPSTREAM} and {@link TrafficRecorder#DOWNSTREAM}
+     */
+    long[] replay(double speed, OutputStream upstream, OutputStream downstream) throws IOException, InterruptedException {
+        long[] totals = new long[2];
+        byte[] buf = new byte[8192];
+        long due = System.nanoTime();
+        while (true) {
+            int direction = in.read();
+            if (direction == -1) {
+                break;
+            } else if (direction != TrafficRecorder.UPSTREAM && direction != TrafficRecorder.DOWNSTREAM) {
+                throw new IOException("malformed record direction " + direction);
+            }
+            due += (long) (readVarLong(in) / speed);
+            long len = readVarLong(in);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            OutputStream target = direction == TrafficRecorder.UPSTREAM ? upstream : downstream;
+            totals[direction] += len;
+            while (len > 0) {
+                int n = (int) Math.min(len, buf.length);
+                in.readFully(buf, 0, n);
+                if (target != null) {
+                    target.write(buf, 0, n);
+                }
+                len -= n;
+            }
+            if (target != null) {
+                target.flush();
+            }
+        }
+        return totals;
+    }
+
+    @Override public void close() throws IOException {
+        in.close();
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new EOFException("malformed varint");
+    }
+
+    /** How to carry replayed traffic. */
+    enum Transport {
+        /** nowhere; only the recorded pacing is reproduced */
+        NONE,
+        TCP,
+        UNIX
+    }
+
+    /** Outcome of {@link #replayOver}. */
+    static final class Stats {
+        /** bytes written, indexed by {@link TrafficRecorder#UPSTREAM} and {@link TrafficRecorder#DOWNSTREAM} */
+        final long[] sent;
+        /** bytes which arrived at the other end, indexed likewise */
+        final long[] received;
+        /** ns from the start of the replay until the last record was written */
+        final long replayed;
+        /** ns from the start of the replay until the last byte arrived */
+        final long delivered;
+
+        Stats(long[] sent, long[] received, long replayed, long delivered) {
+            this.sent = sent;
+            this.received = received;
+            this.replayed = replayed;
+            this.delivered = delivered;
+        }
+    }
+
+    /**
+     * Replays all records over a connected pair of sockets.
+     * @param speed as for {@link #replay}
+     */
+    Stats replayOver(double speed, Transport transport) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        if (transport == Transport.NONE) {
+            long[] sent = replay(speed, null, null);
+            long end = System.nanoTime() - start;
+            return new Stats(sent, sent.clone(), end, end);
+        }
+        try (Link link = transport == Transport.UNIX ? Link.unix() : Link.tcp()) {
+            Drain up = new Drain("drain upstream", link.controllerIn);
+            Drain down = new Drain("drain downstream", link.agentIn);
+            up.start();
+            down.start();
+            long[] sent = replay(speed, link.agentOut, link.controllerOut);
+            long replayed = System.nanoTime() - start;
+            link.shutdownOutput();
+            up.join();
+            down.join();
+            if (up.error != null) {
+                throw up.error;
+            }
+            if (down.error != null) {
+                throw down.error;
+            }
+            long[] received = new long[2];
+            received[TrafficRecorder.UPSTREAM] = up.bytes;
+            received[TrafficRecorder.DOWNSTREAM] = down.bytes;
+            return new Stats(sent, received, replayed, Math.max(up.last, down.last) - start);
+        }
+    }
+
+    /** Reads until end of stream, noting when the last data arrived. */
+    private static final class Drain extends Thread {
+
+        private final InputStream in;
+        long bytes;
+        long last;
+        IOException error;
+
+        Drain(String name, InputStream in) {
+            super(name);
+            this.in = in;
+            setDaemon(true);
+        }
+
+        @Override public void run() {
+            byte[] buf = new byte[8192];
+            try {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    bytes += n;
+                    last = System.nanoTime();
+                }
+            } catch (IOException x) {
+                error = x;
+            }
+        }
+
+    }
+
+    /** Both ends of a connection. */
+    private static final class Link implements Closeable {
+
+        final InputStream agentIn;
+        final OutputStream agentOut;
+        final InputStream controllerIn;
+        final OutputStream controllerOut;
+        private final Closeable[] shutdownOutput;
+        private final Closeable[] resources;
+
+        private Link(InputStream agentIn, OutputStream agentOut, InputStream controllerIn, OutputStream controllerOut, Closeable[] shutdownOutput, Closeable... resources) {
+            this.agentIn = agentIn;
+            this.agentOut = agentOut;
+            this.controllerIn = controllerIn;
+            this.controllerOut = controllerOut;
+            this.shutdownOutput = shutdownOutput;
+            this.resources = resources;
+        }
+
+        static Link tcp() throws IOException {
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            try (ServerSocket server = new ServerSocket(0, 1, loopback)) {
+                Socket agent = new Socket(loopback, server.getLocalPort());
+                Socket controller = server.accept();
+                agent.setTcpNoDelay(true);
+                controller.setTcpNoDelay(true);
+                return new Link(agent.getInputStream(), agent.getOutputStream(), controller.getInputStream(), controller.getOutputStream(),
+                    new Closeable[] {agent::shutdownOutput, controller::shutdownOutput}, agent, controller);
+            }
+        }
+
+        static Link unix() throws IOException {
+            // keep the path short: sun_path is limited to around 100 bytes
+            Path dir = Files.createTempDirectory("mock-replay");
+            Path socket = dir.resolve("replay.sock");
+            try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                server.bind(UnixDomainSocketAddress.of(socket));
+                SocketChannel agent = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+                SocketChannel controller = server.accept();
+                return new Link(new AgentBootstrap.SocketInputStream(agent), new AgentBootstrap.SocketOutputStream(agent),
+                    new AgentBootstrap.SocketInputStream(controller), new AgentBootstrap.SocketOutputStream(controller),
+                    new Closeable[] {agent::shutdownOutput, controller::shutdownOutput}, agent, controller);
+            } finally {
+                Files.deleteIfExists(socket);
+                Files.deleteIfExists(dir);
+            }
+        }
+
+        void shutdownOutput() throws IOException {
+            for (Closeable c : shutdownOutput) {
+                c.close();
+            }
+        }
+
+        @Override public void close() throws IOException {
+            for (Closeable c : resources) {
+                c.close();
+            }
+        }
+
+    }
+
+    public static void main(String... args) throws Exception {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: TrafficReplay <log> [<speed>] [tcp|unix|none]");
+            System.exit(2);
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        Transport transport = args.length > 2 ? Transport.valueOf(args[2].toUpperCase(Locale.ROOT)) : Transport.TCP;
+        try (TrafficReplay replay = new TrafficReplay(new File(args[0]))) {
+            Stats stats = replay.replayOver(speed, transport);
+            System.out.printf("replayed %d bytes upstream and %d bytes downstream over %s in %dms; last byte arrived after %dms%n",
+                stats.sent[TrafficRecorder.UPSTREAM], stats.sent[TrafficRecorder.DOWNSTREAM], transport,
+                TimeUnit.NANOSECONDS.toMillis(stats.replayed), TimeUnit.NANOSECONDS.toMillis(stats.delivered));
+        }
+    }
+
+}
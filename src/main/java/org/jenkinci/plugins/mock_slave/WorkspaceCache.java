@@ -0,0 +1,130 @@
+package org.jenkinci.plugins.mock_slave;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Seeds new agent roots from a template directory, standing in for the persistent cache volumes of real agents.
+ * Files are copied, using copy-on-write clones (reflinks) where the file system supports them.
+ * Hard links may be requested instead, which are cheaper still but share contents with the template.
+ */
+final class WorkspaceCache {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspaceCache.class.getName());
+
+    /** Cleared once {@code cp --reflink} turns out not to be available, such as with a non-GNU {@code cp}. */
+    private static volatile boolean reflink = File.pathSeparatorChar == ':';
+
+    private WorkspaceCache() {}
+
+    /**
+     * Populates an agent root with the contents of a template.
+     * Existing files in the root are left alone.
+     * @param hardLinks whether to hard-link files rather than copy them, so that a build modifying a file in place modifies the template too
+     */
+    static void seed(Path template, Path root, boolean hardLinks) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        String how;
+        if (!hardLinks && reflink && isEmpty(root) && cloneTree(template, root)) {
+            how = "by cloning";
+        } else {
+            Seeder seeder = new Seeder(template, root, hardLinks);
+            Files.walkFileTree(template, seeder);
+            how = seeder.files + " files " + (seeder.link ? "by hard link" : "by copying");
+        }
+        LOGGER.fine(() -> "seeded " + root + " from " + template + " " + how + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+
+    private static boolean isEmpty(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return true;
+        }
+        try (Stream<Path> children = Files.list(dir)) {
+            return children.findAny().isEmpty();
+        }
+    }
+
+    /**
+     * Copies a whole tree with {@code cp --reflink=auto}, which clones files on file systems such as Btrfs or XFS and copies them elsewhere.
+     * @param root an empty directory, which is emptied again should {@code cp} fail
+     * @return false if {@code cp} failed, in which case the caller should copy the files itself
+     */
+    private static boolean cloneTree(Path template, Path root) throws IOException, InterruptedException {
+        Files.createDirectories(root);
+        ProcessBuilder pb = new ProcessBuilder("cp", "-R", "--reflink=auto", "--preserve=mode,timestamps", template + "/.", root.toString()).
+            redirectErrorStream(true);
+        pb.environment().put("LC_ALL", "C"); // so the messages below can be recognized
+        Process proc = pb.start();
+        String output = new String(proc.getInputStream().readAllBytes(), Charset.defaultCharset()).trim();
+        int status = proc.waitFor();
+        if (status == 0) {
+            return true;
+        }
+        // whatever was copied may be incomplete, and the fallback would otherwise skip it as already present
+        FileUtils.cleanDirectory(root.toFile());
+        if (output.contains("unrecognized option") || output.contains("illegal option") || output.contains("invalid option")) {
+            // as from BSD or BusyBox cp; no point trying again, unlike after a transient error such as a full disk
+            LOGGER.fine(() -> "cp does not support --reflink (" + output + "); copying from now on");
+            reflink = false;
+        } else {
+            LOGGER.fine(() -> "cp --reflink exited with status " + status + " (" + output + "); falling back to copying");
+        }
+        return false;
+    }
+
+    private static final class Seeder extends SimpleFileVisitor<Path> {
+
+        private final Path template;
+        private final Path root;
+        /** cleared after the first failure, such as across file systems */
+        boolean link;
+        int files;
+
+        Seeder(Path template, Path root, boolean link) {
+            this.template = template;
+            this.root = root;
+            this.link = link;
+        }
+
+        @Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+            Files.createDirectories(root.resolve(template.relativize(dir)));
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            Path target = root.resolve(template.relativize(file));
+            if (Files.exists(target)) {
+                return FileVisitResult.CONTINUE;
+            }
+            if (link && attrs.isRegularFile()) {
+                try {
+                    Files.createLink(target, file);
+                    files++;
+                    return FileVisitResult.CONTINUE;
+                } catch (FileSystemException | UnsupportedOperationException x) {
+                    LOGGER.log(Level.FINE, "cannot hard link " + file + "; falling back to copying", x);
+                    link = false;
+                }
+            }
+            Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+            files++;
+            return FileVisitResult.CONTINUE;
+        }
+
+    }
+
+}
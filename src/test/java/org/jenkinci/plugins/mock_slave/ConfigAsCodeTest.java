@@ -24,11 +24,15 @@
 
 package org.jenkinci.plugins.mock_slave;
 
+import hudson.model.Computer;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Label;
 import hudson.model.Node;
 import io.jenkins.plugins.casc.ConfigurationAsCode;
+import java.util.List;
 
+import static org.awaitility.Awaitility.await;
 import static org.junit.jupiter.api.Assertions.*;
 
 import org.junit.jupiter.api.BeforeEach;
@@ -69,6 +73,44 @@ class ConfigAsCodeTest {
         assertNotEquals("", b.getBuiltOnStr());
     }
 
+    @Test
+    void fleet() throws Exception {
+        ConfigurationAsCode.get().configure(ConfigAsCodeTest.class.getResource("fleet.yaml").toString());
+        MockFleets config = MockFleets.get();
+        assertEquals(2, config.getParallelism());
+        assertEquals(1, config.getFleets().size());
+        for (String name : List.of("fleet-01", "fleet-02", "fleet-03")) {
+            Computer c = r.jenkins.getComputer(name);
+            assertNotNull(c, name);
+            await().until(c::isOnline);
+        }
+        FreeStyleProject p = r.createFreeStyleProject();
+        p.setAssignedLabel(Label.get("fleet"));
+        assertTrue(r.buildAndAssertSuccess(p).getBuiltOnStr().startsWith("fleet-"));
+        Node survivor = r.jenkins.getNode("fleet-01");
+        MockFleet fleet = new MockFleet("fleet-%02d", 1);
+        fleet.setLabels("fleet");
+        config.setFleets(List.of(fleet));
+        config.save();
+        assertSame(survivor, r.jenkins.getNode("fleet-01"), "unchanged agents are kept");
+        assertNull(r.jenkins.getNode("fleet-02"));
+        assertNull(r.jenkins.getNode("fleet-03"));
+    }
+
+    @Test
+    void fleetNameCollisions() throws Exception {
+        MockSlave manual = new MockSlave("fleet-02");
+        r.jenkins.addNode(manual);
+        ConfigurationAsCode.get().configure(ConfigAsCodeTest.class.getResource("fleet.yaml").toString());
+        assertSame(manual, r.jenkins.getNode("fleet-02"), "existing agent not replaced");
+        assertNotNull(r.jenkins.getNode("fleet-01"));
+        assertNotNull(r.jenkins.getNode("fleet-03"));
+        assertEquals("Fleet fleet-%02d would replace the existing agent fleet-02", MockFleets.collision(MockFleets.get().getFleets()));
+        r.jenkins.removeNode(manual);
+        assertEquals("Fleets fleet-%02d and fleet-%d both define fleet-10", MockFleets.collision(List.of(new MockFleet("fleet-%02d", 10), new MockFleet("fleet-%d", 10))));
+        assertNull(MockFleets.collision(List.of(new MockFleet("fleet-%02d", 9), new MockFleet("fleet-%d", 9))));
+    }
+
     @Test
     void export() throws Exception {
         r.jenkins.setCrumbIssuer(null); // TestCrumbIssuer noise
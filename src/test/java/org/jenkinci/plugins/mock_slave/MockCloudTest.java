@@ -24,18 +24,52 @@
 
 package org.jenkinci.plugins.mock_slave;
 
+import hudson.ExtensionList;
 import hudson.Functions;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Computer;
+import hudson.model.FreeStyleBuild;
 import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.slaves.Cloud;
+import hudson.slaves.CloudProvisioningListener;
+import hudson.slaves.NodeProvisioner;
+import hudson.slaves.EphemeralNode;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.io.FileUtils;
 
 import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -43,8 +77,10 @@ import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.LogRecorder;
 import org.jvnet.hudson.test.MockAuthorizationStrategy;
 import org.jvnet.hudson.test.PrefixedOutputStream;
+import org.jvnet.hudson.test.SleepBuilder;
 import org.jvnet.hudson.test.TailLog;
 import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 
 @WithJenkins
@@ -71,6 +107,248 @@ class MockCloudTest {
         smokeTest(cloud);
     }
 
+    @Test
+    void ephemeral() throws Exception {
+        var cloud = new MockCloud("mock");
+        cloud.setEphemeral(true);
+        cloud.setLabels("mock");
+        r.jenkins.clouds.add(cloud);
+        var p = r.createFreeStyleProject("p");
+        p.setAssignedLabel(Label.get("mock"));
+        p.getBuildersList().add(new SleepBuilder(Long.MAX_VALUE));
+        var b = p.scheduleBuild2(0).waitForStart();
+        r.waitForMessage("Sleeping", b);
+        var agent = b.getBuiltOn();
+        assertThat(agent, instanceOf(EphemeralNode.class));
+        assertFalse(new File(new File(r.jenkins.getRootDir(), "nodes"), agent.getNodeName()).exists());
+        b.getExecutor().interrupt();
+        r.waitForCompletion(b);
+        await().until(() -> r.jenkins.getNodes(), empty());
+    }
+
+    @Test
+    void hosted() throws Exception {
+        var cloud = new MockCloud("mock");
+        cloud.setLabels("mock");
+        cloud.setHosted(true);
+        r.jenkins.clouds.add(cloud);
+        var p = r.createFreeStyleProject("p");
+        p.setAssignedLabel(Label.get("mock"));
+        p.setConcurrentBuild(true);
+        p.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("n")));
+        p.getBuildersList().add(new SleepBuilder(Long.MAX_VALUE));
+        var b1 = p.scheduleBuild2(0, new ParametersAction(new StringParameterValue("n", "1"))).waitForStart();
+        var b2 = p.scheduleBuild2(0, new ParametersAction(new StringParameterValue("n", "2"))).waitForStart();
+        r.waitForMessage("Sleeping", b1);
+        r.waitForMessage("Sleeping", b2);
+        assertNotEquals(b1.getBuiltOn(), b2.getBuiltOn());
+        assertEquals(b1.getBuiltOn().getChannel().call(new Pid()), b2.getBuiltOn().getChannel().call(new Pid()), "one JVM");
+        assertNotEquals(ProcessHandle.current().pid(), b1.getBuiltOn().getChannel().call(new Pid()));
+        b1.getExecutor().interrupt();
+        b2.getExecutor().interrupt();
+        r.waitForCompletion(b1);
+        r.waitForCompletion(b2);
+    }
+
+    private static final class Pid extends MasterToSlaveCallable<Long, RuntimeException> {
+        @Override public Long call() {
+            return ProcessHandle.current().pid();
+        }
+    }
+
+    @Test
+    void cacheTemplate() throws Exception {
+        File template = new File(r.jenkins.getRootDir(), "mock-cache");
+        File cached = new File(template, "workspace/p/cached.txt");
+        FileUtils.writeStringToFile(cached, "warm", StandardCharsets.UTF_8);
+        var cloud = new MockCloud("mock");
+        cloud.setLabels("mock");
+        cloud.setOneShot(false);
+        cloud.setCacheTemplate("mock-cache");
+        r.jenkins.clouds.add(cloud);
+        var p = r.createFreeStyleProject("p");
+        p.setAssignedLabel(Label.get("mock"));
+        p.getBuildersList().add(new TestBuilder() {
+            @Override public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                listener.getLogger().println("cache says " + build.getWorkspace().child("cached.txt").readToString());
+                return true;
+            }
+        });
+        r.assertLogContains("cache says warm", r.buildAndAssertSuccess(p));
+        File seeded = new File(MockSlave.root(r.jenkins.getNodes().get(0).getNodeName()), "workspace/p/cached.txt");
+        FileUtils.writeStringToFile(seeded, "dirty", StandardCharsets.UTF_8, true);
+        assertEquals("warm", FileUtils.readFileToString(cached, StandardCharsets.UTF_8), "template unaffected by writes to a copy");
+        Path linked = new File(r.jenkins.getRootDir(), "linked").toPath();
+        WorkspaceCache.seed(template.toPath(), linked, true);
+        assertTrue(Files.isSameFile(cached.toPath(), linked.resolve("workspace/p/cached.txt")), "hard-linked on request");
+        assertTrue(cached.isFile());
+    }
+
+    @Test
+    void agentRootCleanup() throws Exception {
+        var cloud = new MockCloud("mock");
+        cloud.setLabels("mock");
+        r.jenkins.clouds.add(cloud);
+        var p = r.createFreeStyleProject("p");
+        p.setAssignedLabel(Label.get("mock"));
+        int grace = AgentRoots.GRACE;
+        AgentRoots.GRACE = 3;
+        try {
+            File root = new File(MockSlave.root(r.buildAndAssertSuccess(p).getBuiltOnStr()));
+            await().until(() -> r.jenkins.getNodes(), empty());
+            assertTrue(root.isDirectory(), "kept for the grace period after termination");
+            await().until(() -> !root.exists());
+        } finally {
+            AgentRoots.GRACE = grace;
+        }
+        cloud.setOneShot(false);
+        File live = new File(MockSlave.root(r.buildAndAssertSuccess(p).getBuiltOnStr()));
+        long old = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+        assertTrue(live.setLastModified(old));
+        File stale = new File(AgentRoots.dir(), "mock-agent-999999");
+        assertTrue(stale.mkdirs());
+        assertTrue(stale.setLastModified(old));
+        File unrelated = new File(AgentRoots.dir(), "something-else");
+        assertTrue(unrelated.mkdirs());
+        assertTrue(unrelated.setLastModified(old));
+        assertEquals(1, AgentRoots.evict(TimeUnit.HOURS.toMillis(1)));
+        await().until(() -> !stale.exists());
+        assertTrue(unrelated.isDirectory(), "only cloud agent roots evicted");
+        assertTrue(live.isDirectory(), "live agent root kept");
+    }
+
+    @Test
+    void multiExecutorOneShot() throws Exception {
+        var cloud = new MockCloud("mock");
+        cloud.setLabels("mock");
+        cloud.setExecutors(2);
+        r.jenkins.clouds.add(cloud);
+        var p = r.createFreeStyleProject("p");
+        p.setAssignedLabel(Label.get("mock"));
+        p.setConcurrentBuild(true);
+        p.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("X", ""))); // so builds are not coalesced
+        p.getBuildersList().add(new SleepBuilder(1_000));
+        List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(p.scheduleBuild2(0, new ParametersAction(new StringParameterValue("X", Integer.toString(i)))));
+        }
+        Map<String, Integer> buildsPerAgent = new HashMap<>();
+        for (var future : futures) {
+            buildsPerAgent.merge(r.assertBuildStatusSuccess(future).getBuiltOnStr(), 1, Integer::sum);
+        }
+        assertThat(buildsPerAgent.values(), everyItem(lessThanOrEqualTo(2)));
+        await().until(() -> r.jenkins.getNodes(), empty());
+    }
+
+    @Test
+    void binPacking() throws Exception {
+        var cloud = new MockCloud("mock");
+        cloud.setExecutors(4);
+        cloud.setMinExecutors(1);
+        var planned = cloud.provision(new Cloud.CloudState(null, 0), 7);
+        assertEquals(List.of(4, 3), planned.stream().map(n -> n.numExecutors).toList());
+        for (var n : planned) {
+            assertEquals(n.numExecutors, n.future.get().getNumExecutors());
+        }
+        cloud.setMinExecutors(0);
+        assertEquals(List.of(4, 4), cloud.provision(new Cloud.CloudState(null, 0), 7).stream().map(n -> n.numExecutors).toList());
+    }
+
+    @Test
+    void labelIndex() throws Exception {
+        var a = new MockCloud("a");
+        a.setLabels("x");
+        var b = new MockCloud("b");
+        b.setLabels("y");
+        r.jenkins.clouds.add(a);
+        r.jenkins.clouds.add(b);
+        assertEquals(List.of(a), MockCloudIndex.eligible(Label.get("x")));
+        assertEquals(List.of(a, b), MockCloudIndex.eligible(null));
+        b.setLabels("x y");
+        assertEquals(List.of(a, b), MockCloudIndex.eligible(Label.get("x")));
+        b.mode = Node.Mode.EXCLUSIVE;
+        assertEquals(List.of(a), MockCloudIndex.eligible(null));
+        r.jenkins.clouds.remove(a);
+        assertEquals(List.of(b), MockCloudIndex.eligible(Label.get("x")));
+        assertEquals(List.of(), MockCloudIndex.eligible(Label.get("z")));
+    }
+
+    @Test
+    void spilloverPolicies() throws Exception {
+        var a = new MockCloud("a");
+        a.setMaximum(2);
+        var b = new MockCloud("b");
+        b.setMaximum(5);
+        var c = new MockCloud("c");
+        var clouds = List.of(a, b, c);
+        assertEquals(clouds, MockCloud.NoDelayProvisionerStrategy.Policy.ORDERED.order(clouds));
+        assertEquals(List.of(c, b, a), MockCloud.NoDelayProvisionerStrategy.Policy.MOST_HEADROOM.order(clouds));
+        var first = MockCloud.NoDelayProvisionerStrategy.Policy.ROUND_ROBIN.order(clouds).get(0);
+        var second = MockCloud.NoDelayProvisionerStrategy.Policy.ROUND_ROBIN.order(clouds).get(0);
+        assertNotEquals(first, second);
+        r.jenkins.addNode(a.provision(new Cloud.CloudState(null, 0), 1).iterator().next().future.get());
+        assertEquals(List.of(b, c, a), MockCloud.NoDelayProvisionerStrategy.Policy.LEAST_LOADED.order(clouds));
+    }
+
+    @Test
+    void spreadDemand() throws Exception {
+        var policy = MockCloud.NoDelayProvisionerStrategy.POLICY;
+        MockCloud.NoDelayProvisionerStrategy.POLICY = MockCloud.NoDelayProvisionerStrategy.Policy.LEAST_LOADED;
+        try {
+            // a fair share each
+            assertEquals(Map.of("a", 2, "b", 2), plan("x", 4, 10, 10));
+            // what the first cloud cannot take spills over to the second
+            assertEquals(Map.of("c", 1, "d", 3), plan("y", 4, 1, 10));
+        } finally {
+            MockCloud.NoDelayProvisionerStrategy.POLICY = policy;
+        }
+    }
+
+    /**
+     * Adds two clouds for a label, named after the next letters, and schedules some builds at once.
+     * @return the number of agents planned by each cloud
+     */
+    private Map<String, Integer> plan(String label, int builds, int... maxima) throws Exception {
+        for (int maximum : maxima) {
+            var cloud = new MockCloud(String.valueOf((char) ('a' + r.jenkins.clouds.size())));
+            cloud.setLabels(label);
+            cloud.setMaximum(maximum);
+            r.jenkins.clouds.add(cloud);
+        }
+        var p = r.createFreeStyleProject("p-" + label);
+        p.setAssignedLabel(Label.get(label));
+        p.setConcurrentBuild(true);
+        p.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("X", ""))); // so builds are not coalesced
+        List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<>();
+        // so that the strategy sees all the demand in one pass
+        Queue.withLock(() -> {
+            for (int i = 0; i < builds; i++) {
+                futures.add(p.scheduleBuild2(0, new ParametersAction(new StringParameterValue("X", Integer.toString(i)))));
+            }
+        });
+        for (var future : futures) {
+            r.assertBuildStatusSuccess(future);
+        }
+        Map<String, Integer> planned = new HashMap<>(PlannedAgents.get().planned);
+        planned.keySet().retainAll(r.jenkins.clouds.stream().filter(c -> c instanceof MockCloud mc && mc.getLabels().equals(label)).map(c -> c.name).toList());
+        return planned;
+    }
+
+    @TestExtension("spreadDemand")
+    public static final class PlannedAgents extends CloudProvisioningListener {
+
+        final Map<String, Integer> planned = new ConcurrentHashMap<>();
+
+        static PlannedAgents get() {
+            return ExtensionList.lookupSingleton(PlannedAgents.class);
+        }
+
+        @Override public void onStarted(Cloud cloud, Label label, Collection<NodeProvisioner.PlannedNode> plannedNodes) {
+            planned.merge(cloud.name, plannedNodes.size(), Integer::sum);
+        }
+
+    }
+
     private void smokeTest(MockCloud cloud) throws Exception {
         r.jenkins.setSecurityRealm(r.createDummySecurityRealm());
         r.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy().grant(Jenkins.ADMINISTER).everywhere().toAuthenticated());
@@ -1,16 +1,37 @@
 package org.jenkinci.plugins.mock_slave;
 
 import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.DumbSlave;
 import hudson.slaves.RetentionStrategy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.io.FileUtils;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.awaitility.Awaitility.await;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 import org.junit.jupiter.api.io.TempDir;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
@@ -31,12 +52,243 @@ class MockSlaveLauncherTest {
     @SuppressWarnings("deprecation")
     @Test
     void launch() throws Exception {
-        ComputerLauncher launcher = new MockSlaveLauncher(25, 16 * 1024);
+        ComputerLauncher launcher = new MockSlaveLauncher(25, 16 * 1024 * 1024);
         DumbSlave slave = new DumbSlave("dummy", "dummy", tmp.getAbsolutePath(), "1", Node.Mode.NORMAL, "", launcher, RetentionStrategy.NOOP, Collections.emptyList());
         r.jenkins.addNode(slave);
         r.waitOnline(slave);
         assertEquals(43, slave.getChannel().call(new TestCallable()).intValue());
     }
+
+    @Test
+    void manualClock() throws Exception {
+        Throttler.ManualClock clock = new Throttler.ManualClock();
+        PipedOutputStream agentOut = new PipedOutputStream();
+        PipedInputStream fromAgent = new PipedInputStream(agentOut);
+        PipedInputStream agentIn = new PipedInputStream();
+        PipedOutputStream toAgent = new PipedOutputStream(agentIn);
+        long latency = TimeUnit.SECONDS.toNanos(2);
+        Throttler throttler = new Throttler(latency, 0, latency, 0, clock, fromAgent, toAgent);
+        throttler.os().write(42);
+        agentOut.write(7);
+        agentOut.flush();
+        await().until(() -> throttler.queuedUpstream() == 1);
+        clock.advance(latency / 2);
+        Thread.sleep(100);
+        assertEquals(0, agentIn.available(), "half the latency is not enough");
+        assertEquals(1, throttler.queuedUpstream());
+        clock.advance(latency / 2);
+        assertEquals(42, agentIn.read());
+        assertEquals(7, throttler.is().read());
+        assertEquals(0, throttler.downstreamLateness());
+    }
+
+    @Test
+    void highBandwidth() throws Exception {
+        Throttler.ManualClock clock = new Throttler.ManualClock();
+        PipedInputStream agentIn = new PipedInputStream();
+        PipedOutputStream toAgent = new PipedOutputStream(agentIn);
+        // half a ns per byte, which would round down to unlimited if computed per byte
+        Throttler throttler = new Throttler(0, 0, 0, 2_000_000_000, clock, new ByteArrayInputStream(new byte[0]), toAgent);
+        throttler.os().write(new byte[10]);
+        clock.advance(4);
+        await().until(() -> agentIn.available() == 9);
+        Thread.sleep(100);
+        assertEquals(9, agentIn.available(), "last byte not yet sent");
+        clock.advance(1);
+        await().until(() -> agentIn.available() == 10);
+    }
+
+    @Test
+    void scaledClock() throws Exception {
+        Throttler.ManualClock base = new Throttler.ManualClock();
+        assertThrows(IllegalArgumentException.class, () -> base.scaled(0));
+        assertThrows(IllegalArgumentException.class, () -> base.scaled(Double.NaN));
+        Throttler.Clock clock = base.scaled(10);
+        base.advance(100);
+        assertEquals(1000, clock.nanos());
+        Thread sleeper = new Thread(() -> {
+            try {
+                clock.sleepUntil(2000);
+            } catch (InterruptedException x) {
+                throw new AssertionError(x);
+            }
+        });
+        sleeper.start();
+        base.advance(99);
+        sleeper.join(100);
+        assertTrue(sleeper.isAlive(), "still 10ns of base time to go");
+        base.advance(1);
+        sleeper.join(10_000);
+        assertFalse(sleeper.isAlive());
+    }
+
+    @Test
+    void launchLogLimits() throws Exception {
+        byte[] noise = new byte[1024 * 1024];
+        Arrays.fill(noise, (byte) 'x');
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        long before = LaunchLogPipe.totalDropped();
+        LaunchLogPipe pipe = new LaunchLogPipe("test", new ByteArrayInputStream(noise), log, 1000, 0);
+        pipe.run();
+        assertEquals(noise.length - 1000, pipe.dropped());
+        assertEquals(noise.length - 1000, LaunchLogPipe.totalDropped() - before);
+        String text = log.toString(StandardCharsets.UTF_8);
+        assertThat(text, containsString("output exceeded 1000 bytes"));
+        assertThat(text, containsString((noise.length - 1000) + " bytes of output discarded"));
+        assertThat(text, startsWith("x".repeat(1000) + "\n["));
+        log.reset();
+        pipe = new LaunchLogPipe("test", new ByteArrayInputStream(noise), log, 0, 64 * 1024);
+        pipe.run();
+        assertThat("a burst beyond the rate is mostly dropped", pipe.dropped(), greaterThanOrEqualTo(noise.length / 2L));
+    }
+
+    @Test
+    void ramp() throws Exception {
+        int concurrency = LaunchRamp.CONCURRENCY;
+        double rate = LaunchRamp.RATE;
+        LaunchRamp.CONCURRENCY = 1;
+        LaunchRamp.RATE = 2;
+        try {
+            long start = System.nanoTime();
+            MockSlave[] agents = {new MockSlave("ramp-1"), new MockSlave("ramp-2"), new MockSlave("ramp-3")};
+            for (MockSlave agent : agents) {
+                r.jenkins.addNode(agent);
+            }
+            for (MockSlave agent : agents) {
+                r.waitOnline(agent);
+            }
+            assertThat("three launches at two per second", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(1000L));
+            assertThat(agents[0].toComputer().getLog(), containsString("launch phases: slot wait"));
+            assertEquals(0, LaunchRamp.active());
+        } finally {
+            LaunchRamp.CONCURRENCY = concurrency;
+            LaunchRamp.RATE = rate;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    void asymmetric() throws Exception {
+        MockSlaveLauncher launcher = new MockSlaveLauncher(25, 16 * 1024 * 1024);
+        launcher.setAsymmetric(true);
+        launcher.setUpstreamLatency(100);
+        launcher.setUpstreamBandwidth(1024 * 1024);
+        DumbSlave slave = new DumbSlave("dummy", "dummy", tmp.getAbsolutePath(), "1", Node.Mode.NORMAL, "", launcher, RetentionStrategy.NOOP, Collections.emptyList());
+        r.jenkins.addNode(slave);
+        r.waitOnline(slave);
+        long start = System.nanoTime();
+        assertEquals(43, slave.getChannel().call(new TestCallable()).intValue());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertThat("a round trip must pay both the downstream and the upstream latency", elapsed, greaterThanOrEqualTo(125L));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    void record() throws Exception {
+        File recordings = new File(r.jenkins.getRootDir(), MockSlaveLauncher.RECORDINGS);
+        assertTrue(recordings.mkdirs());
+        File stale = new File(recordings, "stale" + TrafficRecorder.EXTENSION);
+        FileUtils.touch(stale);
+        int keep = TrafficRecorder.KEEP;
+        TrafficRecorder.KEEP = 1;
+        try {
+            MockSlaveLauncher launcher = new MockSlaveLauncher(0, 0);
+            launcher.setRecord(true);
+            DumbSlave slave = new DumbSlave("dummy", "dummy", tmp.getAbsolutePath(), "1", Node.Mode.NORMAL, "", launcher, RetentionStrategy.NOOP, Collections.emptyList());
+            r.jenkins.addNode(slave);
+            r.waitOnline(slave);
+            assertEquals(43, slave.getChannel().call(new TestCallable()).intValue());
+            slave.toComputer().disconnect(null).get();
+            File[] logs = recordings.listFiles();
+            assertNotNull(logs);
+            assertEquals(1, logs.length);
+            assertFalse(stale.exists());
+            await().ignoreExceptions().until(() -> { // recording is only flushed once the channel is closed
+                try (TrafficReplay replay = new TrafficReplay(logs[0])) {
+                    long[] totals = replay.replay(Double.POSITIVE_INFINITY, null, null);
+                    return totals[TrafficRecorder.UPSTREAM] > 0 && totals[TrafficRecorder.DOWNSTREAM] > 0;
+                }
+            });
+            for (TrafficReplay.Transport transport : TrafficReplay.Transport.values()) {
+                try (TrafficReplay replay = new TrafficReplay(logs[0])) {
+                    TrafficReplay.Stats stats = replay.replayOver(Double.POSITIVE_INFINITY, transport);
+                    assertArrayEquals(stats.sent, stats.received, transport.name());
+                }
+            }
+        } finally {
+            TrafficRecorder.KEEP = keep;
+        }
+    }
+
+    @Test
+    void connectTransports() throws Exception {
+        for (MockSlaveLauncher.Transport transport : MockSlaveLauncher.Transport.values()) {
+            if (transport == MockSlaveLauncher.Transport.AUTO) {
+                continue;
+            }
+            DumbSlave slave = startAgent(transport);
+            assertEquals(43, slave.getChannel().call(new TestCallable()).intValue(), transport.name());
+            r.jenkins.removeNode(slave);
+        }
+        // as when a later test gets a fresh JENKINS_HOME
+        FileUtils.deleteDirectory(new File(r.jenkins.getRootDir(), "mock-agent-bootstrap"));
+        DumbSlave slave = startAgent(MockSlaveLauncher.Transport.UNIX);
+        assertEquals(43, slave.getChannel().call(new TestCallable()).intValue(), "bootstrap classes reinstalled");
+    }
+
+    /**
+     * Compares round-trip latency and bulk throughput of each transport.
+     * Run with {@code mvn test -Dtest=MockSlaveLauncherTest#transports -Dbenchmark=true}.
+     */
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    @Test
+    void transports() throws Exception {
+        for (MockSlaveLauncher.Transport transport : MockSlaveLauncher.Transport.values()) {
+            if (transport == MockSlaveLauncher.Transport.AUTO) {
+                continue;
+            }
+            DumbSlave slave = startAgent(transport);
+            VirtualChannel channel = slave.getChannel();
+            for (int i = 0; i < 20; i++) { // warm up
+                assertEquals(43, channel.call(new TestCallable()).intValue());
+            }
+            int calls = 200;
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                channel.call(new TestCallable());
+            }
+            long rtt = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / calls;
+            int size = 32 * 1024 * 1024;
+            start = System.nanoTime();
+            assertEquals(size, channel.call(new PayloadCallable(size)).length);
+            long ms = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            System.out.printf("%s: round trip %dµs, throughput %dMiB/s%n", transport, rtt, size / 1024 / 1024 * 1000 / ms);
+            r.jenkins.removeNode(slave);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private DumbSlave startAgent(MockSlaveLauncher.Transport transport) throws Exception {
+        MockSlaveLauncher launcher = new MockSlaveLauncher(0, 0);
+        launcher.setTransport(transport);
+        String name = "agent-" + transport.name().toLowerCase(Locale.ROOT);
+        DumbSlave slave = new DumbSlave(name, name, new File(tmp, name).getAbsolutePath(), "1", Node.Mode.NORMAL, "", launcher, RetentionStrategy.NOOP, Collections.emptyList());
+        r.jenkins.addNode(slave);
+        r.waitOnline(slave);
+        return slave;
+    }
+
+    private static class PayloadCallable extends MasterToSlaveCallable<byte[], Error> {
+        private final int size;
+        PayloadCallable(int size) {
+            this.size = size;
+        }
+        @Override
+        public byte[] call() throws Error {
+            return new byte[size];
+        }
+    }
+
     private static class TestCallable extends MasterToSlaveCallable<Integer,Error> {
         @Override
         public Integer call() throws Error {
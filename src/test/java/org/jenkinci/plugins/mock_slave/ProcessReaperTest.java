@@ -0,0 +1,54 @@
+package org.jenkinci.plugins.mock_slave;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+@DisabledOnOs(OS.WINDOWS)
+class ProcessReaperTest {
+
+    @Test
+    void reapsDescendants() throws Exception {
+        Process proc = new ProcessBuilder("sh", "-c", "sleep 1000 & wait").start();
+        List<ProcessHandle> children = children(proc);
+        ProcessReaper.reap(proc, "test").get(30, TimeUnit.SECONDS);
+        assertFalse(proc.isAlive());
+        for (ProcessHandle child : children) {
+            assertFalse(child.isAlive(), child::toString);
+        }
+    }
+
+    @Test
+    void killsForcibly() throws Exception {
+        int timeout = ProcessReaper.TIMEOUT;
+        ProcessReaper.TIMEOUT = 1;
+        try {
+            // the ignored signal is inherited by the child
+            Process proc = new ProcessBuilder("sh", "-c", "trap '' TERM; sleep 1000 & wait").start();
+            List<ProcessHandle> children = children(proc);
+            long start = System.nanoTime();
+            ProcessReaper.reap(proc, "test").get(30, TimeUnit.SECONDS);
+            assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), lessThan(10L));
+            assertFalse(proc.isAlive());
+            for (ProcessHandle child : children) {
+                assertFalse(child.isAlive(), child::toString);
+            }
+        } finally {
+            ProcessReaper.TIMEOUT = timeout;
+        }
+    }
+
+    private static List<ProcessHandle> children(Process proc) {
+        return await().until(() -> proc.children().collect(Collectors.toList()), hasSize(1));
+    }
+
+}
@@ -0,0 +1,198 @@
+package org.jenkinci.plugins.mock_slave;
+
+import hudson.model.Computer;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.slaves.ComputerListener;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ * Measures end-to-end throughput of {@link MockCloud} under load.
+ * Run with {@code mvn test -Dtest=ProvisioningBenchmarkTest -Dbenchmark=true};
+ * add {@code -Dbenchmark.builds=1000} to change the number of builds per scenario.
+ * To guard a change, record results on one machine before it with {@code -Dbenchmark.record=/tmp/before.properties},
+ * then run again after it with {@code -Dbenchmark.baseline=/tmp/before.properties}:
+ * every metric is then compared against the recorded one with a tolerance of {@code -Dbenchmark.tolerance=0.25}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+@WithJenkins
+class ProvisioningBenchmarkTest {
+
+    private static final String[] LABELS = {"a", "b", "c"};
+
+    private JenkinsRule r;
+
+    @BeforeEach
+    void beforeEach(JenkinsRule rule) {
+        r = rule;
+    }
+
+    @Test
+    void oneShotOutbound() throws Exception {
+        run("oneShotOutbound", true, false);
+    }
+
+    @Test
+    void reusableOutbound() throws Exception {
+        run("reusableOutbound", false, false);
+    }
+
+    @Test
+    void oneShotInbound() throws Exception {
+        run("oneShotInbound", true, true);
+    }
+
+    @Test
+    void reusableInbound() throws Exception {
+        run("reusableInbound", false, true);
+    }
+
+    private void run(String scenario, boolean oneShot, boolean inbound) throws Exception {
+        int builds = Integer.getInteger("benchmark.builds", 300);
+        int agentsPerCloud = Integer.getInteger("benchmark.agents", 10);
+        r.jenkins.setNumExecutors(0);
+        List<FreeStyleProject> projects = new ArrayList<>();
+        for (String label : LABELS) {
+            MockCloud cloud = new MockCloud("mock-" + label);
+            cloud.setLabels(label);
+            cloud.setOneShot(oneShot);
+            cloud.setInbound(inbound);
+            cloud.setExecutors(oneShot ? 1 : 2);
+            cloud.setMaximum(agentsPerCloud);
+            r.jenkins.clouds.add(cloud);
+            FreeStyleProject p = r.createFreeStyleProject("p-" + label);
+            p.setAssignedLabel(Label.get(label));
+            p.setConcurrentBuild(true);
+            p.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("n")));
+            projects.add(p);
+        }
+        long start = System.nanoTime();
+        List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<>();
+        List<Long> scheduled = new ArrayList<>();
+        for (int i = 0; i < builds; i++) {
+            // distinct parameters, so the queue does not coalesce the builds
+            scheduled.add(System.currentTimeMillis());
+            futures.add(projects.get(i % projects.size()).scheduleBuild2(0, new ParametersAction(new StringParameterValue("n", Integer.toString(i)))));
+        }
+        List<Long> queueWaits = new ArrayList<>();
+        for (int i = 0; i < builds; i++) {
+            FreeStyleBuild b = r.assertBuildStatusSuccess(futures.get(i).get(30, TimeUnit.MINUTES));
+            queueWaits.add(b.getStartTimeInMillis() - scheduled.get(i));
+        }
+        double minutes = (System.nanoTime() - start) / (double) TimeUnit.MINUTES.toNanos(1);
+        List<Long> launches = new ArrayList<>(r.jenkins.getExtensionList(LaunchTimes.class).get(0).durations.values());
+        Properties results = new Properties();
+        results.setProperty(scenario + ".itemsPerMinute", String.format(Locale.ROOT, "%.1f", builds / minutes));
+        results.setProperty(scenario + ".queueWait.p50", Long.toString(percentile(queueWaits, 50)));
+        results.setProperty(scenario + ".queueWait.p99", Long.toString(percentile(queueWaits, 99)));
+        results.setProperty(scenario + ".launch.p50", Long.toString(percentile(launches, 50)));
+        results.setProperty(scenario + ".launch.p99", Long.toString(percentile(launches, 99)));
+        System.out.printf("%s: %d builds on %d agents, %s items/min, queue wait p50 %sms p99 %sms, launch p50 %sms p99 %sms%n",
+            scenario, builds, launches.size(), results.get(scenario + ".itemsPerMinute"),
+            results.get(scenario + ".queueWait.p50"), results.get(scenario + ".queueWait.p99"),
+            results.get(scenario + ".launch.p50"), results.get(scenario + ".launch.p99"));
+        Properties baseline = load(System.getProperty("benchmark.baseline"));
+        String record = System.getProperty("benchmark.record");
+        if (record != null) {
+            Properties all = load(record);
+            all.putAll(results);
+            try (OutputStream os = new FileOutputStream(record)) {
+                all.store(os, "ProvisioningBenchmarkTest results");
+            }
+        }
+        if (baseline != null) {
+            compare(baseline, results);
+        }
+    }
+
+    /** @return null if no file was given; empty if it does not exist yet */
+    private static Properties load(String file) throws Exception {
+        if (file == null) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            props.load(is);
+        } catch (FileNotFoundException x) {
+            // nothing recorded yet
+        }
+        return props;
+    }
+
+    /** Higher is better for throughput, lower for everything else. */
+    private static void compare(Properties baseline, Properties results) {
+        double tolerance = Double.parseDouble(System.getProperty("benchmark.tolerance", "0.25"));
+        for (String key : results.stringPropertyNames()) {
+            String expected = baseline.getProperty(key);
+            assertNotNull(expected, () -> key + " missing from baseline");
+            double actual = Double.parseDouble(results.getProperty(key));
+            double base = Double.parseDouble(expected);
+            if (key.endsWith(".itemsPerMinute")) {
+                assertThat(key, actual, greaterThanOrEqualTo(base * (1 - tolerance)));
+            } else {
+                assertThat(key, actual, lessThanOrEqualTo(base * (1 + tolerance)));
+            }
+        }
+    }
+
+    private static long percentile(List<Long> values, int p) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(p / 100.0 * sorted.size()) - 1));
+    }
+
+    /** Time from the start of each launch attempt until the agent comes online. */
+    @TestExtension
+    public static final class LaunchTimes extends ComputerListener {
+
+        private final Map<Computer, Long> started = new ConcurrentHashMap<>();
+        final Map<Computer, Long> durations = new ConcurrentHashMap<>();
+
+        @Override public void preLaunch(Computer c, TaskListener taskListener) {
+            started.putIfAbsent(c, System.nanoTime());
+        }
+
+        @Override public void onOnline(Computer c, TaskListener listener) {
+            Long start = started.remove(c);
+            if (start != null) {
+                durations.put(c, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+
+    }
+
+}